@@ -0,0 +1,174 @@
+package eu.MrSnowflake.android.gametemplate.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.MrSnowflake.android.gametemplate.RasterRenderer;
+import eu.MrSnowflake.android.gametemplate.TreeGenerator;
+import eu.MrSnowflake.android.gametemplate.TreeLines;
+import eu.MrSnowflake.android.gametemplate.TreeNode;
+import eu.MrSnowflake.android.gametemplate.TreeStore;
+
+/**
+ * JMH benchmarks for the tree, on a plain JVM. Every benchmark runs for
+ * every combination of branching factor and depth, the number of levels
+ * below the top.
+ *
+ * Nothing here touches Android: drawing goes to a {@link RasterRenderer},
+ * and the tree classes it uses don't depend on Android either. bench/pom.xml
+ * builds them into a runnable jar:
+ * "mvn -f bench/pom.xml package", then
+ * "java -jar bench/target/benchmarks.jar TreeBenchmark -p depth=6".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeBenchmark {
+
+	private static final float LENGTH = 100;
+	private static final int WIDTH = 480;
+	private static final int HEIGHT = 800;
+	/** Pixels per tree unit for {@link #traverseDistant()}. */
+	private static final float DISTANT_SCALE = 1f / 256;
+	private static final float DETAIL_PIXELS = 2;
+
+	@Param({ "2", "3", "4" })
+	public int branchingFactor;
+
+	@Param({ "4", "6", "8" })
+	public int depth;
+
+	/** A full tree, depth levels deep, for the read-only benchmarks. */
+	private TreeStore tree;
+	private int top;
+	private TreeNode topNode;
+	private TreeLines lines;
+	private TreeLines distantLines;
+	private RasterRenderer renderer;
+
+	/** Reused by {@link #branch()}. */
+	private final TreeStore scratch = new TreeStore();
+
+	/** Advanced by {@link #advance()}, as the game does. */
+	private TreeGenerator generator;
+	private TreeLines advanceLines;
+	private int root;
+	private int decision;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		tree = new TreeStore();
+		TreeGenerator full = new TreeGenerator(tree, LENGTH, branchingFactor, depth);
+		full.setSeed(1);
+		root = full.start();
+		top = tree.getParent(root);
+		topNode = tree.node(top);
+		lines = new TreeLines();
+		lines.update(tree, top, WIDTH / 2, HEIGHT);
+		renderer = new RasterRenderer(WIDTH, HEIGHT);
+		distantLines = new TreeLines();
+		distantLines.setDetail(DISTANT_SCALE, DETAIL_PIXELS);
+
+		generator = new TreeGenerator(new TreeStore(), LENGTH, branchingFactor, depth);
+		generator.setSeed(1);
+		root = generator.start();
+		advanceLines = new TreeLines();
+		decision = 0;
+	}
+
+	/**
+	 * Grows a whole tree through the old {@link TreeNode} API.
+	 */
+	@Benchmark
+	public int branch()
+	{
+		scratch.clear();
+		TreeNode node = scratch.node(scratch.addRoot(0, -LENGTH));
+		branch(node, depth);
+		return scratch.size();
+	}
+
+	private void branch(TreeNode node, int levels)
+	{
+		if (levels == 0)
+			return;
+		node.branch(branchingFactor, LENGTH);
+		for (TreeNode child : node.getChildren())
+			branch(child, levels - 1);
+	}
+
+	@Benchmark
+	public int getTreeLevel() {
+		return topNode.getTreeLevel();
+	}
+
+	@Benchmark
+	public String treeToString() {
+		return topNode.toString();
+	}
+
+	/**
+	 * Walks the whole tree into a vertex buffer, as drawTree does whenever
+	 * the tree has changed.
+	 */
+	@Benchmark
+	public int traverse()
+	{
+		lines.invalidate();
+		lines.update(tree, top, WIDTH / 2, HEIGHT);
+		return lines.getLineCount();
+	}
+
+	/**
+	 * Like {@link #traverse()}, with the tree drawn so small that most of it
+	 * is collapsed by the level of detail.
+	 */
+	@Benchmark
+	public int traverseDistant()
+	{
+		distantLines.invalidate();
+		distantLines.update(tree, top, WIDTH / 2, HEIGHT);
+		return distantLines.getLineCount();
+	}
+
+	/**
+	 * Rasterizes the vertex buffer, without rebuilding it.
+	 */
+	@Benchmark
+	public long render()
+	{
+		renderer.clear(0xff000000);
+		renderer.drawLines(lines, 0xffffffff);
+		return renderer.getPixelsDrawn();
+	}
+
+	/**
+	 * One root advance as updateGame does it, turning a different way each
+	 * time, followed by rebuilding the vertex buffer for the next frame.
+	 */
+	@Benchmark
+	public int advance()
+	{
+		root = generator.advance(root, decision);
+		decision = (decision + 1) % branchingFactor;
+		TreeStore current = generator.getTree();
+		advanceLines.update(current, current.getParent(root), WIDTH / 2, HEIGHT);
+		return advanceLines.getLineCount();
+	}
+}
@@ -0,0 +1,44 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * An axis-aligned box, like android.graphics.RectF, for the classes that
+ * have to work without Android too: the tree, its vertex buffer and the
+ * raster renderer. Empty if right &lt;= left or bottom &lt;= top.
+ */
+public class Bounds {
+
+	public float left;
+	public float top;
+	public float right;
+	public float bottom;
+
+	public Bounds set(float left, float top, float right, float bottom)
+	{
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+		return this;
+	}
+
+	public Bounds set(Bounds other) {
+		return set(other.left, other.top, other.right, other.bottom);
+	}
+
+	public float width() {
+		return right - left;
+	}
+
+	public float height() {
+		return bottom - top;
+	}
+
+	public boolean isEmpty() {
+		return right <= left || bottom <= top;
+	}
+
+	@Override
+	public String toString() {
+		return "(" + left + "," + top + " - " + right + "," + bottom + ")";
+	}
+}
@@ -0,0 +1,250 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.ArrayList;
+
+/**
+ * Builds, on its own thread, the tree as it will look after the next root
+ * advance, once for every child the player may choose. Each of them is a
+ * complete {@link TreeStore} of its own: the current root as the new top,
+ * its children, and the chosen child grown to the lookahead. At the advance
+ * the game thread just swaps in the store for the child that was chosen and
+ * hands its old store back for reuse, so no branching happens on the game
+ * thread at all.
+ *
+ * Requests carry a sequence number; results for anything but the latest
+ * request are never handed out.
+ *
+ * Stores, results and the arrays holding them are all recycled, so once
+ * there are enough of them to go round, advancing allocates nothing; see
+ * {@link #getCreatedTreeCount()}.
+ */
+public class BranchPregenerator extends Thread {
+
+	/** A finished tree for one choice. */
+	public static class Prepared {
+		TreeStore tree;
+		int root = TreeStore.NONE;
+
+		public TreeStore getTree() {
+			return tree;
+		}
+
+		/**
+		 * @return the new root; its parent is the new previous root
+		 */
+		public int getRoot() {
+			return root;
+		}
+	}
+
+	// the latest request, guarded by this
+	private int requestSeq = -1;
+	private boolean pending;
+	private DirectionTable rootTable;
+	private int rootDirection;
+	private int rootDepth;
+	private long rootKey;
+	private DirectionTable directions;
+	private int lookahead;
+	private float variation;
+
+	// the results of the latest request that finished, guarded by this
+	private int readySeq = -1;
+	private Prepared[] ready = NOTHING;
+	private static final Prepared[] NOTHING = new Prepared[0];
+
+	private final ArrayList<TreeStore> spareTrees = new ArrayList<TreeStore>();
+	private final ArrayList<Prepared> spareResults = new ArrayList<Prepared>();
+	private final ArrayList<Prepared[]> spareArrays = new ArrayList<Prepared[]>();
+	private int createdTrees;
+	private boolean mDone;
+
+	public BranchPregenerator()
+	{
+		super("BranchPregenerator");
+		setDaemon(true);
+	}
+
+	/**
+	 * Asks for the trees after the next advance from root. Must be called on
+	 * the thread that owns tree. Roots whose displacement was not taken from
+	 * a direction table can't be rebuilt elsewhere and are skipped.
+	 *
+	 * @return false if nothing will be prepared for this request
+	 */
+	public synchronized boolean request(int seq, TreeStore tree, int root, DirectionTable directions, int lookahead,
+			float variation)
+	{
+		requestSeq = seq;
+		DirectionTable table = tree.getTableOf(root);
+		if (table == null)
+		{
+			pending = false;
+			return false;
+		}
+		rootTable = table;
+		rootDirection = tree.getDirection(root);
+		rootDepth = tree.getDepth(root);
+		rootKey = tree.getKey(root);
+		this.directions = directions;
+		this.lookahead = lookahead;
+		this.variation = variation;
+		pending = true;
+		notify();
+		return true;
+	}
+
+	/**
+	 * Takes the tree prepared for a choice, if the given request has
+	 * finished. The trees for the other choices are recycled.
+	 *
+	 * @return the tree, or null if it isn't ready
+	 */
+	public synchronized Prepared take(int seq, int decision)
+	{
+		if (readySeq != seq || decision < 0 || decision >= ready.length)
+			return null;
+		Prepared taken = ready[decision];
+		for (int i = 0; i < ready.length; i++)
+			if (i != decision)
+				recycle(ready[i]);
+		spareArrays.add(ready);
+		ready = NOTHING;
+		readySeq = -1;
+		return taken;
+	}
+
+	/**
+	 * Gives back a result whose tree has been swapped in, together with the
+	 * tree it replaced, for building the next ones. Nobody else may touch
+	 * the old tree afterwards.
+	 */
+	public synchronized void handBack(Prepared taken, TreeStore old)
+	{
+		taken.tree = null;
+		spareResults.add(taken);
+		spareTrees.add(old);
+	}
+
+	private void recycle(Prepared prepared)
+	{
+		if (prepared.tree != null)
+			spareTrees.add(prepared.tree);
+		prepared.tree = null;
+		spareResults.add(prepared);
+	}
+
+	public void requestExitAndWait()
+	{
+		synchronized (this) {
+			mDone = true;
+			notify();
+		}
+		try {
+			join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			int seq;
+			DirectionTable table, childTable;
+			int direction, depth, levels;
+			long key;
+			float bend;
+			synchronized (this) {
+				try {
+					while (!pending && !mDone)
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (mDone)
+					return;
+				pending = false;
+				seq = requestSeq;
+				table = rootTable;
+				direction = rootDirection;
+				depth = rootDepth;
+				key = rootKey;
+				childTable = directions;
+				levels = lookahead;
+				bend = variation;
+			}
+
+			int choices = childTable.getBranchingFactor();
+			Prepared[] built = obtainArray(choices);
+			for (int i = 0; i < choices; i++)
+			{
+				Prepared prepared = obtainResult();
+				TreeStore tree = prepared.tree;
+				tree.clear();
+				int top = tree.addRoot(table, direction, depth);
+				tree.setKey(top, key); // so the branches come out as they would have in place
+				TreeGenerator.grow(tree, top, 1, childTable, bend);
+				prepared.root = tree.getFirstChild(top) + i;
+				TreeGenerator.grow(tree, prepared.root, levels, childTable, bend);
+				built[i] = prepared;
+			}
+
+			synchronized (this) {
+				if (seq == requestSeq)
+				{
+					for (Prepared old : ready)
+						recycle(old);
+					if (ready != NOTHING)
+						spareArrays.add(ready);
+					ready = built;
+					readySeq = seq;
+				}
+				else
+				{
+					for (Prepared stale : built)
+						recycle(stale);
+					spareArrays.add(built);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of stores made so far; it stops growing once there
+	 *         are enough to go round
+	 */
+	public synchronized int getCreatedTreeCount() {
+		return createdTrees;
+	}
+
+	/**
+	 * @return the number of stores waiting to be reused
+	 */
+	public synchronized int getSpareTreeCount() {
+		return spareTrees.size();
+	}
+
+	private synchronized Prepared obtainResult()
+	{
+		Prepared prepared = spareResults.isEmpty() ? new Prepared() : spareResults.remove(spareResults.size() - 1);
+		if (spareTrees.isEmpty())
+		{
+			prepared.tree = new TreeStore();
+			createdTrees++;
+		}
+		else
+			prepared.tree = spareTrees.remove(spareTrees.size() - 1);
+		return prepared;
+	}
+
+	private synchronized Prepared[] obtainArray(int length)
+	{
+		for (int i = spareArrays.size() - 1; i >= 0; i--)
+			if (spareArrays.get(i).length == length)
+				return spareArrays.remove(i);
+		return new Prepared[length];
+	}
+}
@@ -0,0 +1,87 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ * {@link Renderer} on an Android {@link Canvas}. One paint is shared by
+ * everything and only its color changes between calls. Line buffers are
+ * drawn through a {@link TreeLayer}, so they are cached as a bitmap.
+ */
+public class CanvasRenderer implements Renderer {
+
+	private Canvas canvas;
+	private final Paint paint = new Paint();
+	private final Matrix matrix = new Matrix();
+	private final TreeLayer layer;
+
+	/**
+	 * @param layer the cache for {@link #drawLines(TreeLines, int)}
+	 */
+	public CanvasRenderer(TreeLayer layer)
+	{
+		this.layer = layer;
+	}
+
+	/**
+	 * Sets the canvas to draw on, usually once per frame.
+	 */
+	public void setCanvas(Canvas canvas) {
+		this.canvas = canvas;
+	}
+
+	/**
+	 * Turns anti-aliasing on or off. The cached lines are redrawn with it.
+	 */
+	public void setAntiAlias(boolean antiAlias)
+	{
+		if (paint.isAntiAlias() == antiAlias)
+			return;
+		paint.setAntiAlias(antiAlias);
+		layer.invalidate();
+	}
+
+	public void clear(int color) {
+		canvas.drawColor(color);
+	}
+
+	public void setTransform(float[] values)
+	{
+		if (values == null)
+			matrix.reset();
+		else
+			matrix.setValues(values);
+		canvas.setMatrix(matrix);
+	}
+
+	public void drawLines(float[] points, int offset, int count, int color)
+	{
+		paint.setColor(color);
+		canvas.drawLines(points, offset, count, paint);
+	}
+
+	public void drawLines(TreeLines lines, int color)
+	{
+		paint.setColor(color);
+		layer.draw(canvas, lines, paint);
+	}
+
+	public void drawCircle(float x, float y, float radius, int color)
+	{
+		paint.setColor(color);
+		canvas.drawCircle(x, y, radius, paint);
+	}
+
+	public void drawText(String text, float x, float y, int color)
+	{
+		paint.setColor(color);
+		canvas.drawText(text, x, y, paint);
+	}
+
+	public void drawText(char[] text, int start, int length, float x, float y, int color)
+	{
+		paint.setColor(color);
+		canvas.drawText(text, start, length, x, y, paint);
+	}
+}
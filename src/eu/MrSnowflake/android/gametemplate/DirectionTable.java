@@ -0,0 +1,156 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Precomputed branch directions for one branch length and branching factor.
+ *
+ * Children always point in their parent's direction plus a multiple of PI/6,
+ * so a node's direction is one of {@link #DIRECTIONS} steps around the circle.
+ * Direction 0 points straight up the screen, direction 6 straight down. This
+ * table holds the displacement for every step, both as floats and as one
+ * shared, immutable {@link Point}, plus the direction of every child of a
+ * node in every direction. Branching with it needs no trigonometry at all.
+ */
+public class DirectionTable {
+
+	/** Number of distinct directions, one every PI/6. */
+	public static final int DIRECTIONS = 12;
+
+	private static final double STEP = Math.PI / 6;
+
+	private final float length;
+	private final int branchingFactor;
+	private final float[] dx = new float[DIRECTIONS];
+	private final float[] dy = new float[DIRECTIONS];
+	private final Point[] displacements = new Point[DIRECTIONS];
+	private final int[] childDirections;
+
+	public DirectionTable(float length, int branchingFactor)
+	{
+		this.length = length;
+		this.branchingFactor = branchingFactor;
+		for (int d = 0; d < DIRECTIONS; d++)
+		{
+			dx[d] = (float)(length*Math.sin(d*STEP));
+			dy[d] = -(float)(length*Math.cos(d*STEP));
+			displacements[d] = new ImmutablePoint(dx[d], dy[d]);
+		}
+		childDirections = new int[DIRECTIONS * branchingFactor];
+		for (int d = 0; d < DIRECTIONS; d++)
+			for (int i = 0; i < branchingFactor; i++)
+				childDirections[d * branchingFactor + i] = wrap(d + 1 - i); // child 1 goes straight on
+	}
+
+	public float getLength() {
+		return length;
+	}
+
+	public int getBranchingFactor() {
+		return branchingFactor;
+	}
+
+	public float getDx(int direction) {
+		return dx[direction];
+	}
+
+	public float getDy(int direction) {
+		return dy[direction];
+	}
+
+	/**
+	 * @return the shared displacement for a direction, which must not be
+	 *         modified
+	 */
+	public Point getDisplacement(int direction) {
+		return displacements[direction];
+	}
+
+	/**
+	 * @return the direction of child i of a node pointing in the given
+	 *         direction
+	 */
+	public int getChildDirection(int direction, int i) {
+		return childDirections[direction * branchingFactor + i];
+	}
+
+	/**
+	 * @return whether this table was built for the given length and factor
+	 */
+	public boolean matches(float length, int branchingFactor) {
+		return this.length == length && this.branchingFactor == branchingFactor;
+	}
+
+	/**
+	 * @return the direction steps away from the given one, clockwise for a
+	 *         positive number of steps
+	 */
+	public static int turn(int direction, int steps) {
+		return wrap(direction + steps);
+	}
+
+	/**
+	 * @return the shortest turn from one direction to another, in steps from
+	 *         -DIRECTIONS/2 + 1 to DIRECTIONS/2
+	 */
+	public static int stepsBetween(int from, int to)
+	{
+		int steps = wrap(to - from);
+		return steps > DIRECTIONS / 2 ? steps - DIRECTIONS : steps;
+	}
+
+	/**
+	 * Rounds an arbitrary displacement to the nearest table direction.
+	 */
+	public static int quantize(float x, float y)
+	{
+		if (x == 0 && y == 0)
+			return 0;
+		return wrap((int)Math.round(Math.atan2(x, -y) / STEP));
+	}
+
+	private static int wrap(int direction)
+	{
+		direction %= DIRECTIONS;
+		return direction < 0 ? direction + DIRECTIONS : direction;
+	}
+
+	/**
+	 * Point shared between every node using the same direction, so it may
+	 * never move.
+	 */
+	private static class ImmutablePoint extends Point {
+
+		ImmutablePoint(float x, float y) {
+			super(x, y);
+		}
+
+		@Override
+		public void setX(float x) {
+			throw new UnsupportedOperationException("Shared displacement");
+		}
+
+		@Override
+		public void setY(float y) {
+			throw new UnsupportedOperationException("Shared displacement");
+		}
+
+		@Override
+		public void translate(float dx, float dy) {
+			throw new UnsupportedOperationException("Shared displacement");
+		}
+
+		/*
+		 * Point.translate(Point, float, float, Point) and
+		 * displacementTo(Point, Point) write through these, so a shared
+		 * displacement can't be passed as their out either.
+		 */
+		@Override
+		public Point set(float x, float y) {
+			throw new UnsupportedOperationException("Shared displacement");
+		}
+
+		@Override
+		public Point set(Point p) {
+			throw new UnsupportedOperationException("Shared displacement");
+		}
+	}
+}
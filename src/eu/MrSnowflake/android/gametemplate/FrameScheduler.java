@@ -0,0 +1,93 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Decides when the game loop may start its next frame. Frames are spaced
+ * at least 1/maxFps apart while the scene is moving, and 1/idleFps apart
+ * while it is static, so a paused game stops burning CPU on redraws of an
+ * unchanged picture.
+ *
+ * Where the display's vsyncs are known, frames are started on them, see
+ * {@link #isDue(long, boolean, long)}.
+ *
+ * All times are in nanoseconds, from {@link System#nanoTime()}.
+ */
+public class FrameScheduler {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private long minFrameNanos;
+	private long idleFrameNanos;
+	private long lastFrame;
+	private boolean started;
+
+	public FrameScheduler(int maxFps, int idleFps)
+	{
+		setMaxFps(maxFps);
+		setIdleFps(idleFps);
+	}
+
+	/**
+	 * Caps the frame rate while the scene is moving.
+	 */
+	public void setMaxFps(int maxFps)
+	{
+		if (maxFps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive: " + maxFps);
+		minFrameNanos = NANOS_PER_SECOND / maxFps;
+	}
+
+	/**
+	 * Sets the frame rate used while the scene is static.
+	 */
+	public void setIdleFps(int idleFps)
+	{
+		if (idleFps <= 0)
+			throw new IllegalArgumentException("Frame rate must be positive: " + idleFps);
+		idleFrameNanos = NANOS_PER_SECOND / idleFps;
+	}
+
+	/**
+	 * @param idle whether the scene is static
+	 * @return how long to wait before starting the next frame, 0 if it may
+	 *         start now
+	 */
+	public long getDelay(long now, boolean idle)
+	{
+		if (!started)
+			return 0;
+		long due = lastFrame + (idle ? idleFrameNanos : minFrameNanos);
+		return Math.max(0, due - now);
+	}
+
+	/**
+	 * For frames timed by display vsyncs: whether a frame may start at the
+	 * given vsync. Vsync times jitter, so one that comes up to half a
+	 * refresh before the cap allows still counts, or a cap equal to the
+	 * refresh rate would skip every other vsync.
+	 *
+	 * @param refreshNanos the time between two vsyncs
+	 */
+	public boolean isDue(long vsyncTime, boolean idle, long refreshNanos)
+	{
+		if (!started)
+			return true;
+		return vsyncTime - lastFrame >= (idle ? idleFrameNanos : minFrameNanos) - refreshNanos / 2;
+	}
+
+	/**
+	 * Records that a frame starts now.
+	 */
+	public void frameStarted(long now)
+	{
+		lastFrame = now;
+		started = true;
+	}
+
+	/**
+	 * Forgets the last frame, so the next one may start right away, e.g.
+	 * after the loop was blocked or the scene started moving again.
+	 */
+	public void reset() {
+		started = false;
+	}
+}
@@ -0,0 +1,224 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Timing histograms for the phases of a frame. Every phase gets a fixed
+ * array of buckets BUCKET_NANOS wide, so recording a sample is a division
+ * and an increment and never allocates. Percentiles are read back from the
+ * buckets, so they are accurate to one bucket; the maximum is exact.
+ *
+ * Only the game thread may record samples or draw the overlay, except that
+ * UPDATE samples come from the simulation thread when the game runs one.
+ * Each phase is only ever recorded by one thread, so that just makes the
+ * overlay see them a little late.
+ */
+public class FrameStats {
+
+	public enum Phase {
+		/** The whole frame, from locking the canvas to posting it. */
+		FRAME,
+		/** GameThread.updateGame(), on whichever thread runs the simulation. */
+		UPDATE,
+		/** GameThread.doDraw(), including the tree. */
+		DRAW,
+		/** GameThread.drawTree(). */
+		TREE
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	private static final long BUCKET_NANOS = 100000; // 0.1ms
+	private static final int BUCKETS = 500; // up to 50ms, slower samples go in the last bucket
+
+	private final int[][] buckets = new int[PHASES.length][BUCKETS];
+	private final int[] counts = new int[PHASES.length];
+	private final long[] max = new long[PHASES.length];
+	private final long[] started = new long[PHASES.length];
+
+	private long frameBudgetNanos;
+	private long lastFrameStart;
+	private int droppedFrames;
+
+	private final char[] line = new char[64];
+
+	/**
+	 * @param frameBudgetNanos the time between frames we aim for; a frame
+	 *        that starts more than half a budget late counts as dropped
+	 */
+	public FrameStats(long frameBudgetNanos)
+	{
+		this.frameBudgetNanos = frameBudgetNanos;
+	}
+
+	public void begin(Phase phase) {
+		started[phase.ordinal()] = System.nanoTime();
+	}
+
+	public void end(Phase phase) {
+		record(phase, System.nanoTime() - started[phase.ordinal()]);
+	}
+
+	public void record(Phase phase, long nanos)
+	{
+		int p = phase.ordinal();
+		int bucket = (int)Math.min(nanos / BUCKET_NANOS, BUCKETS - 1);
+		buckets[p][bucket]++;
+		counts[p]++;
+		if (nanos > max[p])
+			max[p] = nanos;
+	}
+
+	/**
+	 * Records the start of a frame, counting a dropped frame if it comes
+	 * too long after the previous one.
+	 */
+	public void frameStarted(long now)
+	{
+		if (lastFrameStart != 0 && now - lastFrameStart > frameBudgetNanos + frameBudgetNanos / 2)
+			droppedFrames++;
+		lastFrameStart = now;
+	}
+
+	/**
+	 * Forgets the previous frame, e.g. after the thread was parked, so the
+	 * pause does not count as a dropped frame.
+	 */
+	public void frameGap() {
+		lastFrameStart = 0;
+	}
+
+	public void setFrameBudget(long frameBudgetNanos) {
+		this.frameBudgetNanos = frameBudgetNanos;
+	}
+
+	/**
+	 * @param fraction the percentile, e.g. 0.95 for p95
+	 * @return the upper bound of the bucket holding that percentile, in
+	 *         nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(Phase phase, double fraction)
+	{
+		int p = phase.ordinal();
+		if (counts[p] == 0)
+			return 0;
+		long wanted = (long)Math.ceil(counts[p] * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++)
+		{
+			seen += buckets[p][i];
+			if (seen >= wanted)
+				return Math.min((i + 1) * BUCKET_NANOS, max[p]);
+		}
+		return max[p];
+	}
+
+	public long getMax(Phase phase) {
+		return max[phase.ordinal()];
+	}
+
+	public int getCount(Phase phase) {
+		return counts[phase.ordinal()];
+	}
+
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public void reset()
+	{
+		for (int p = 0; p < PHASES.length; p++)
+		{
+			Arrays.fill(buckets[p], 0);
+			counts[p] = 0;
+			max[p] = 0;
+		}
+		droppedFrames = 0;
+		lastFrameStart = 0;
+	}
+
+	/**
+	 * Writes a summary of every phase to logcat.
+	 */
+	public void log(String tag)
+	{
+		for (Phase phase : PHASES)
+		{
+			int n = format(phase);
+			Log.i(tag, new String(line, 0, n) + " n=" + getCount(phase));
+		}
+		Log.i(tag, "dropped frames: " + droppedFrames);
+	}
+
+	/**
+	 * Draws a summary of every phase, one line per phase, starting at
+	 * (x, y). Allocates nothing.
+	 */
+	public void draw(Renderer renderer, int color, float x, float y, float lineHeight)
+	{
+		for (Phase phase : PHASES)
+		{
+			renderer.drawText(line, 0, format(phase), x, y, color);
+			y += lineHeight;
+		}
+		int n = append(line, 0, "dropped ");
+		n = appendInt(line, n, droppedFrames);
+		renderer.drawText(line, 0, n, x, y, color);
+	}
+
+	/**
+	 * Fills line with "NAME p50 a p95 b p99 c max d" in milliseconds.
+	 *
+	 * @return the number of chars used
+	 */
+	private int format(Phase phase)
+	{
+		int n = append(line, 0, phase.name());
+		n = append(line, n, " p50 ");
+		n = appendMillis(line, n, getPercentile(phase, .50));
+		n = append(line, n, " p95 ");
+		n = appendMillis(line, n, getPercentile(phase, .95));
+		n = append(line, n, " p99 ");
+		n = appendMillis(line, n, getPercentile(phase, .99));
+		n = append(line, n, " max ");
+		return appendMillis(line, n, getMax(phase));
+	}
+
+	private static int append(char[] buffer, int pos, String text)
+	{
+		int n = Math.min(text.length(), buffer.length - pos);
+		text.getChars(0, n, buffer, pos);
+		return pos + n;
+	}
+
+	private static int appendInt(char[] buffer, int pos, long value)
+	{
+		if (value < 0)
+			value = 0;
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10)
+			digits++;
+		if (pos + digits > buffer.length)
+			return pos;
+		for (int i = pos + digits - 1; i >= pos; i--)
+		{
+			buffer[i] = (char)('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+
+	/** Appends nanos as milliseconds with two decimals. */
+	private static int appendMillis(char[] buffer, int pos, long nanos)
+	{
+		long hundredths = (nanos + 5000) / 10000;
+		pos = appendInt(buffer, pos, hundredths / 100);
+		if (pos + 3 > buffer.length)
+			return pos;
+		buffer[pos++] = '.';
+		buffer[pos++] = (char)('0' + (hundredths / 10) % 10);
+		buffer[pos++] = (char)('0' + hundredths % 10);
+		return pos;
+	}
+}
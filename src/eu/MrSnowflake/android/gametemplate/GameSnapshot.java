@@ -0,0 +1,191 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Everything needed to carry on with a game, in a compact binary form: the
+ * tree below previousRoot as written by {@link TreeStore#write}, the scroll
+ * and rotation state and the clock counters. Reading a snapshot back puts
+ * the nodes straight into a store, so nothing has to be generated again.
+ *
+ * Small snapshots go into a byte array, large ones into a memory-mapped
+ * file, so the tree is never copied through a stream.
+ */
+public class GameSnapshot {
+
+	private static final int MAGIC = 0x54524545; // "TREE"
+	private static final int VERSION = 2;
+	/** Deepest lookahead accepted, far more than any quality level uses. */
+	private static final int MAX_LOOKAHEAD = 16;
+	private static final int HEADER_SIZE = 4 + 4 // magic, version
+			+ 4 + 4 + 4 // branch length, branching factor, lookahead
+			+ 8 + 4 // seed, variation
+			+ 4 + 4 + 8 // origin, angleToRotate
+			+ 4 * 4 // dX, dY, dXSinceReadjust, dYSinceReadjust
+			+ 4 + 1 + 1 // decision, shouldSave, needsToRotate
+			+ 1 + 9 * 4 // moving matrix present, its values
+			+ 8 + 8 // clock ticks, dropped ticks
+			+ 4; // root, relative to the first child of previousRoot
+
+	float branchLength;
+	int branchingFactor;
+	int lookahead;
+	long seed;
+	float variation;
+	float originX;
+	float originY;
+	double angleToRotate;
+	float dX;
+	float dY;
+	float dXSinceReadjust;
+	float dYSinceReadjust;
+	int decision;
+	boolean shouldSave;
+	boolean needsToRotate;
+	boolean hasMatrix;
+	final float[] matrix = new float[9];
+	long ticks;
+	long droppedTicks;
+
+	TreeStore tree;
+	/** Top of the tree. */
+	int previousRoot = TreeStore.NONE;
+	/** A child of previousRoot. */
+	int root = TreeStore.NONE;
+
+	public int getEncodedSize() {
+		return HEADER_SIZE + tree.getEncodedSize(previousRoot);
+	}
+
+	public void write(ByteBuffer out)
+	{
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putFloat(branchLength);
+		out.putInt(branchingFactor);
+		out.putInt(lookahead);
+		out.putLong(seed);
+		out.putFloat(variation);
+		out.putFloat(originX);
+		out.putFloat(originY);
+		out.putDouble(angleToRotate);
+		out.putFloat(dX);
+		out.putFloat(dY);
+		out.putFloat(dXSinceReadjust);
+		out.putFloat(dYSinceReadjust);
+		out.putInt(decision);
+		out.put((byte)(shouldSave ? 1 : 0));
+		out.put((byte)(needsToRotate ? 1 : 0));
+		out.put((byte)(hasMatrix ? 1 : 0));
+		for (float value : matrix)
+			out.putFloat(value);
+		out.putLong(ticks);
+		out.putLong(droppedTicks);
+		out.putInt(root - tree.getFirstChild(previousRoot));
+		tree.write(out, previousRoot);
+	}
+
+	/**
+	 * Reads a snapshot, adding its tree to the given store. The tree's shape
+	 * is checked, so a {@link TreeGenerator} can be made from it.
+	 *
+	 * @throws IllegalArgumentException if the data is not a valid snapshot
+	 */
+	public static GameSnapshot read(ByteBuffer in, TreeStore tree)
+	{
+		GameSnapshot snapshot = new GameSnapshot();
+		try {
+			if (in.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a game snapshot");
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unknown snapshot version: " + version);
+			snapshot.branchLength = in.getFloat();
+			snapshot.branchingFactor = in.getInt();
+			snapshot.lookahead = in.getInt();
+			snapshot.seed = in.getLong();
+			snapshot.variation = in.getFloat();
+			if (!(snapshot.branchLength > 0) || Float.isInfinite(snapshot.branchLength))
+				throw new IllegalArgumentException("Bad branch length: " + snapshot.branchLength);
+			if (snapshot.branchingFactor < 1 || snapshot.branchingFactor > 0xff)
+				throw new IllegalArgumentException("Bad branching factor: " + snapshot.branchingFactor);
+			if (snapshot.lookahead < 1 || snapshot.lookahead > MAX_LOOKAHEAD)
+				throw new IllegalArgumentException("Bad lookahead: " + snapshot.lookahead);
+			if (!(snapshot.variation >= 0 && snapshot.variation <= 1))
+				throw new IllegalArgumentException("Bad variation: " + snapshot.variation);
+			snapshot.originX = in.getFloat();
+			snapshot.originY = in.getFloat();
+			snapshot.angleToRotate = in.getDouble();
+			snapshot.dX = in.getFloat();
+			snapshot.dY = in.getFloat();
+			snapshot.dXSinceReadjust = in.getFloat();
+			snapshot.dYSinceReadjust = in.getFloat();
+			snapshot.decision = in.getInt();
+			snapshot.shouldSave = in.get() != 0;
+			snapshot.needsToRotate = in.get() != 0;
+			snapshot.hasMatrix = in.get() != 0;
+			for (int i = 0; i < snapshot.matrix.length; i++)
+				snapshot.matrix[i] = in.getFloat();
+			snapshot.ticks = in.getLong();
+			snapshot.droppedTicks = in.getLong();
+			int rootOffset = in.getInt();
+			int top = tree.read(in);
+			if (rootOffset < 0 || rootOffset >= tree.getChildCount(top))
+				throw new IllegalArgumentException("Root is not a child of the top: " + rootOffset);
+			snapshot.tree = tree;
+			snapshot.previousRoot = top;
+			snapshot.root = tree.getFirstChild(top) + rootOffset;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated game snapshot", e);
+		}
+		return snapshot;
+	}
+
+	public byte[] toByteArray()
+	{
+		byte[] bytes = new byte[getEncodedSize()];
+		write(ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	public static GameSnapshot fromByteArray(byte[] bytes, TreeStore tree) {
+		return read(ByteBuffer.wrap(bytes), tree);
+	}
+
+	/**
+	 * Writes the snapshot to a memory-mapped file, replacing its contents.
+	 */
+	public void writeTo(File file) throws IOException
+	{
+		int size = getEncodedSize();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			write(out);
+			out.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps a file written by {@link #writeTo(File)} and reads it.
+	 */
+	public static GameSnapshot readFrom(File file, TreeStore tree) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), tree);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -2,17 +2,15 @@ package eu.MrSnowflake.android.gametemplate;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.os.PowerManager;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.Window;
+import android.view.WindowManager;
 import eu.MrSnowflake.android.gametemplate.GameView.GameThread;
 
 public class GameTemplate extends Activity {
 	
-	private PowerManager.WakeLock mWakeLock;
-	
     private static final int MENU_PAUSE = Menu.FIRST;
 
     private static final int MENU_RESUME = Menu.FIRST + 1;
@@ -21,6 +19,10 @@ public class GameTemplate extends Activity {
 
     private static final int MENU_STOP = Menu.FIRST + 3;
 
+    private static final int MENU_STATS = Menu.FIRST + 4;
+
+    private static final int MENU_OVERLAY = Menu.FIRST + 5;
+
     /** A handle to the thread that's actually running the animation. */
     private GameThread mGameThread;
 
@@ -45,6 +47,8 @@ public class GameTemplate extends Activity {
         menu.add(0, MENU_STOP, 0, R.string.menu_stop);
         menu.add(0, MENU_PAUSE, 0, R.string.menu_pause);
         menu.add(0, MENU_RESUME, 0, R.string.menu_resume);
+        menu.add(0, MENU_STATS, 0, R.string.menu_stats);
+        menu.add(0, MENU_OVERLAY, 0, R.string.menu_overlay);
 
         return true;
     }
@@ -61,15 +65,25 @@ public class GameTemplate extends Activity {
         switch (item.getItemId()) {
             case MENU_START:
                 mGameThread.doStart();
+                setKeepScreenOn(true);
                 return true;
             case MENU_STOP:
                 mGameThread.setState(GameState.LOSE);
+                setKeepScreenOn(false);
                 return true;
             case MENU_PAUSE:
                 mGameThread.pause();
+                setKeepScreenOn(false);
                 return true;
             case MENU_RESUME:
                 mGameThread.unpause();
+                setKeepScreenOn(true);
+                return true;
+            case MENU_STATS:
+                mGameThread.requestStatsDump();
+                return true;
+            case MENU_OVERLAY:
+                mGameThread.setStatsOverlay(!mGameThread.isStatsOverlayShown());
                 return true;
         }
 
@@ -86,10 +100,6 @@ public class GameTemplate extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        PowerManager pm = (PowerManager) getSystemService(GameTemplate.POWER_SERVICE);
-        mWakeLock = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE, "Yay");
-        mWakeLock.acquire();
-        
         // turn off the window's title bar
         requestWindowFeature(Window.FEATURE_NO_TITLE);
 
@@ -100,9 +110,13 @@ public class GameTemplate extends Activity {
         mGameView = (GameView) findViewById(R.id.game);
         mGameThread = mGameView.getThread();
 
-        // set up a new game
-        mGameThread.setState(GameState.READY);
-        Log.w(this.getClass().getName(), "SIS is null");
+        if (savedInstanceState == null || !mGameThread.restoreState(savedInstanceState)) {
+            // we were just launched: set up a new game
+            mGameThread.setState(GameState.READY);
+            Log.w(this.getClass().getName(), "SIS is null");
+        } else {
+            Log.w(this.getClass().getName(), "SIS is nonnull");
+        }
     }
 
     /**
@@ -112,13 +126,49 @@ public class GameTemplate extends Activity {
     protected void onPause() {
         super.onPause();
         mGameView.getThread().onPause(); // pause game when Activity pauses
-        mWakeLock.release();
     }
     
     @Override
     protected void onResume() {
     	super.onResume();
     	mGameView.getThread().onResume();
-    	mWakeLock.acquire();
+    }
+
+    /**
+     * Stops the game's threads, the pregenerator's included, and frees the
+     * bitmap the tree is cached in.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mGameThread.requestExitAndWait();
+    }
+
+    /**
+     * Notification that something is about to happen, to give the Activity a
+     * chance to save state.
+     * 
+     * @param outState a Bundle into which this Activity should save its state
+     */
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        // just have the View's thread save its state into our Bundle
+        super.onSaveInstanceState(outState);
+        mGameThread.saveState(outState);
+        Log.w(this.getClass().getName(), "SIS called");
+    }
+
+    /**
+     * Keeps the screen on while the game runs. Unlike a wake lock, the window
+     * flag only applies while the Activity is visible, and is dropped while
+     * the game is paused or stopped so the screen may time out.
+     * 
+     * @param keepOn true while the tree is scrolling
+     */
+    private void setKeepScreenOn(boolean keepOn) {
+        if (keepOn)
+            getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        else
+            getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 }
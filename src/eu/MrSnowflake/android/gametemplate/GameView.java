@@ -1,5 +1,7 @@
 package eu.MrSnowflake.android.gametemplate;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
 
 import android.content.Context;
@@ -8,7 +10,8 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
@@ -20,6 +23,7 @@ import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.ViewConfiguration;
+import android.view.WindowManager;
 import eu.MrSnowflake.android.gametemplate.GameTemplate.GameState;
 
 /**
@@ -45,6 +49,15 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 	return true;
 	}
 	
+	/*
+	 * Quality levels of the GameThread, cheapest first: the levels of
+	 * branches kept below the root, and whether lines are anti-aliased. The
+	 * branching factor is part of the game, not of its looks, so it stays
+	 * the same.
+	 */
+	private static final int[] QUALITY_LOOKAHEAD = { 2, 3, 3, 4 };
+	private static final boolean[] QUALITY_ANTI_ALIAS = { false, false, true, true };
+
 	class GameThread extends Thread {
 		
 		private boolean mDone;
@@ -52,13 +65,49 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
         private boolean mHasFocus;
         private boolean mHasSurface;
         private boolean mContextLost;
+		private static final String STATS_TAG = "FrameStats";
+		private static final String QUALITY_TAG = "QualityGovernor";
+		private static final String KEY_SNAPSHOT = "snapshot"; // the snapshot bytes, if small enough
+		private static final String KEY_SNAPSHOT_FILE = "snapshotFile"; // else the file holding it
+		private static final int MAX_BUNDLE_SNAPSHOT = 256 * 1024; //larger snapshots go to a mapped file
+		private static final int MAX_FPS = 60; //frame-rate cap while the tree scrolls
+		private static final int IDLE_FPS = 4; //frame rate while the game isn't running and nothing moves
+		/** Paces the loop in run(). */
+		private final FrameScheduler frameScheduler = new FrameScheduler(MAX_FPS, IDLE_FPS);
+		/** The display's vsyncs that frames start on while the game runs, null before Android 4.1. */
+		private final Vsync vsync;
+		private final long refreshNanos; // time between two vsyncs
+		private long vsyncSeen; // vsync.getFrames() when last looked at, guarded by this
+		private static final long VSYNC_TIMEOUT_NANOS = 100000000L; // wait no longer than 100ms for a vsync before timing the frame ourselves
+		private long frameTime; // when the current frame started: its vsync, or the time it was due
+		/** Per-phase frame timings. */
+		private final FrameStats frameStats = new FrameStats(1000000000L / MAX_FPS);
+		private boolean mShowStats; // draw the timings over the game
+		private volatile boolean mDumpStats; // log the timings at the end of the next frame
 		/*
 		 * State-tracking constants
 		 */
-		TreeNode root; //the current root, the first node seen on screen
-		TreeNode previousRoot; // the previous root, kept track of for drawing purposes.
+		TreeStore tree = new TreeStore(); // every node of the tree, root and previousRoot index into it
+		TreeLines treeLines = new TreeLines(); // the tree below previousRoot as one batch of line vertices
+		private final TreeLayer treeLayer = new TreeLayer(Runtime.getRuntime().maxMemory() / 8); // treeLines drawn once into a bitmap, at most 1/8 of the heap
+		private final CanvasRenderer renderer = new CanvasRenderer(treeLayer); // everything is drawn through this
+		private final RenderState.Buffer renderStates = new RenderState.Buffer(); // what the next frame draws, filled in under the lock
+		private int renderEpoch; // bumped whenever the moving matrix jumps, see RenderState.epoch
+		private final float[] drawMatrix = new float[9]; // the interpolated moving matrix, render thread only
+		/**
+		 * Whether the simulation runs on its own thread, so growing the tree
+		 * and drawing it overlap. Only worth it with a core for each.
+		 */
+		private final boolean pipelined = Runtime.getRuntime().availableProcessors() > 1;
+		private SimulationThread simulation;
+		private boolean simulationWoken; // a state change the simulation should see right away, guarded by this
+		int root = TreeStore.NONE; //the current root, the first node seen on screen
+		int previousRoot = TreeStore.NONE; // the previous root, kept track of for drawing purposes.
 		//TreeNode previousRootRoot;
 		Point origin;
+		private final PointPool scratch = new PointPool(8); // per-frame vectors, reset at the start of doDraw, render thread only
+		private final Point pivot = new Point(0, 0); // what the matrix is rotated about, simulation side only
+		private final Hud hud = new Hud(); // debug text, only rebuilt when its values change
 
 		
 		
@@ -71,20 +120,45 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 		float dXSinceReadjust;
 		private float dY = 0; //the amount we have scrolled in the DY since the last exchange of root and previousroot
 		private float dX = 0; //the amount we have scrolled in the DX since the last exchange of root and previousroot
-		private double lastReadjustTime = 0;
 		private double coefficientDX = 0.0;//coefficient of canvas movement
 		private double coefficientDY = 1.0; //coefficient of canvas movement 1.0 to start in order to translate vertically
 		double angleToRotate;
 		boolean needsToRotate = false;
-		private static final double SPEED = .1; //canvas scroll speed in pixels per second
-		private double elapsed;
+		private static final double SPEED = .1; //canvas scroll speed in pixels per millisecond
+		private static final int TICKS_PER_SECOND = 60; //simulation steps per second, independent of the frame rate
+		private static final int MAX_CATCH_UP_TICKS = 5; //most steps run in one frame when we fall behind
+		private static final long START_DELAY_NANOS = 100000000L; //lets the game start (or resume) 100ms before the simulation does
+		/** Pays out real time in fixed simulation steps. */
+		private final SimulationClock clock = new SimulationClock(TICKS_PER_SECOND, MAX_CATCH_UP_TICKS);
 		private float branchLength;
+		private static final int BRANCHING_FACTOR = 3; //branches per node
+		private static final int LOOKAHEAD = 3; //levels of branches kept below the root, until the governor picks a quality
+		private static final float VARIATION = 0.25f; //chance that a node's branches bend a step to one side
+		private static final int NODE_BUDGET = 256; //nodes kept in the tree before off-screen branches are evicted
+		private static final float DETAIL_PIXELS = 2; //smallest subtree, in pixels, drawn in full; never hit without a zoom
+		private static final int START_QUALITY = 1; // LOOKAHEAD deep, no anti-aliasing
+		/** Lowers the quality when frames get too slow for MAX_FPS, raises it when there is room. */
+		private final QualityGovernor governor = new QualityGovernor(1000000000L / MAX_FPS, QUALITY_LOOKAHEAD.length - 1, START_QUALITY);
+		private volatile int quality = START_QUALITY; // picked on the render thread
+		private int appliedQuality = -1; // the quality the generator was set to, guarded by the lock
+		private final Random random = new Random(); // seeds every new tree
+		private TreeGenerator generator; // keeps the tree LOOKAHEAD levels deep below root
+		private BranchPregenerator pregenerator; // builds the trees for the next advance in the background
 		int stationaryMatrixNum = -1;
 		int movingMatrixNum;
 		
 		Matrix stationaryMatrix = null;
 		Matrix movingMatrix = null;
+		private final Matrix inverseMatrix = new Matrix(); // screen to tree coordinates, for culling and taps
+		private final NodeGrid nodeGrid = new NodeGrid(8); // the nodes in treeLines, for finding the one tapped
+		private static final float TAP_DIP = 24.0f; //how far from a node a tap may land and still choose it
+		private final float tapRadius; // TAP_DIP in pixels
+		private final float[] tapPoint = new float[2];
+		private final RectF screen = new RectF(); // the screen, mapped into tree coordinates
+		private final Bounds viewport = new Bounds(); // the visible part of the tree, in tree coordinates
 		
+		/** Key presses and swipes from the UI thread, drained at the start of every tick. */
+		private final InputQueue input = new InputQueue(64);
 		private boolean dRight;
 		private boolean dLeft;
 		private boolean dUp;
@@ -93,12 +167,11 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 		private int mCanvasWidth;
 		private int mCanvasHeight;
 
-		private long mLastTime;
 		/** Message handler used by thread to post stuff back to the GameView */
 		private Handler mHandler;
 
 		/** The state of the game. One of READY, RUNNING, PAUSE, LOSE, or WIN */
-		private GameState mMode;
+		private volatile GameState mMode;
 		/** Indicate whether the surface has been created & is ready to draw */
 		private boolean mRun = false;
 		/** Handle to the surface manager object we interact with */
@@ -113,6 +186,10 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 
 			mSnowflake = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.snowflake);
 
+			tapRadius = TAP_DIP * context.getResources().getDisplayMetrics().density;
+			vsync = Vsync.create(this); // we are on the UI thread here, whose Choreographer we want
+			float refreshRate = ((WindowManager)context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRefreshRate();
+			refreshNanos = (long)(1000000000L / (refreshRate > 0 ? refreshRate : MAX_FPS));
 		}
 
 		/**
@@ -123,28 +200,28 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 				// Initialize game here!
 				origin = new Point(mCanvasWidth/2,mCanvasHeight);
 				branchLength = mCanvasHeight /3;
-				root = new TreeNode(null,new Point (0,-branchLength)); // displacement from
-				previousRoot = new TreeNode(new TreeNode[]{root},new Point(0,branchLength));
-				root.branch(3, branchLength);
-				for(TreeNode tn : root.getChildren())
-				{
-					tn.branch(3, branchLength);
-					
-					/*//MORE RECURSION
-					
-					for(TreeNode tnc :tn.getChildren())
-					{
-						tnc.branch(3, branchLength);
-						for(TreeNode tncc:tnc.getChildren())
-							tncc.branch(3, branchLength);
-					}*/
-				
+				tree = new TreeStore();
+				renderEpoch++;
+				if (pregenerator == null) {
+					pregenerator = new BranchPregenerator();
+					pregenerator.start();
 				}
-				Log.i(previousRoot.getTreeLevel() + "", "debugtree");
-				mLastTime = System.currentTimeMillis() + 100;
+				generator = new TreeGenerator(tree, branchLength, BRANCHING_FACTOR, LOOKAHEAD);
+				appliedQuality = -1;
+				generator.setSeed(random.nextLong());
+				generator.setVariation(VARIATION);
+				generator.setNodeBudget(NODE_BUDGET);
+				generator.setPregenerator(pregenerator);
+				root = generator.start();
+				previousRoot = tree.getParent(root);
+				Log.i(tree.getTreeLevel(previousRoot) + " levels, " + tree.getDescendantCount(previousRoot) + " nodes", "debugtree");
+				dXSinceReadjust = 0;
+				dYSinceReadjust = 0;
+				clock.start(System.nanoTime() + START_DELAY_NANOS);
 				setState(GameState.RUNNING);
 				thread.setRunning(true);
-				thread.start();
+				if (thread.getState() == Thread.State.NEW)
+					thread.start();
 			}
 		}
 
@@ -160,17 +237,46 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 			}
 		}
 
+		/**
+		 * The render loop. Without a pipeline every frame first runs the
+		 * simulation; with one, the {@link SimulationThread} does that at its
+		 * own fixed rate and this thread only draws the newest state it
+		 * published, one simulation step behind so the matrix can be
+		 * interpolated between the last two steps.
+		 */
 		@Override
 		public void run() {
+			if (pipelined) {
+				simulation = new SimulationThread();
+				simulation.start();
+			}
 			while (mRun) {
+				if (!waitForNextFrame())
+					break;
 				Canvas c = null;
+				long frameStart = System.nanoTime();
+				boolean running = mMode == GameState.RUNNING;
+				frameStats.begin(FrameStats.Phase.FRAME);
 				try {
 					c = mSurfaceHolder.lockCanvas(null);
-					synchronized (mSurfaceHolder) {
-						if (mMode == GameState.RUNNING) 
-							updateGame();
-						doDraw(c);
+					if (running)
+						frameStats.frameStarted(frameTime);
+					else
+						frameStats.frameGap(); // idle frames are slow on purpose
+					if (!pipelined) {
+						synchronized (mSurfaceHolder) {
+							simulate(frameTime);
+						}
 					}
+					renderStates.acquire();
+					RenderState state = renderStates.getFront();
+					float[] matrix = state.matrix;
+					if (pipelined)
+						matrix = state.interpolate(frameTime - clock.getTickNanos(), drawMatrix);
+					// drawn without the lock, from what publishFrame() copied out
+					frameStats.begin(FrameStats.Phase.DRAW);
+					doDraw(c, state, matrix);
+					frameStats.end(FrameStats.Phase.DRAW);
 				} finally {
 					// do this in a finally so that if an exception is thrown
 					// during the above, we don't leave the Surface in an
@@ -179,9 +285,204 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 						mSurfaceHolder.unlockCanvasAndPost(c);
 					}
 				}
+				frameStats.end(FrameStats.Phase.FRAME);
+				if (!running)
+					governor.frameGap(); // idle frames say nothing about the quality
+				else if (governor.frameFinished(System.nanoTime() - frameStart)) {
+					quality = governor.getLevel();
+					Log.i(QUALITY_TAG, "Quality " + quality + ", frames took " + governor.getAverage() / 1000 + "us");
+				}
+				if (mDumpStats) {
+					mDumpStats = false;
+					frameStats.log(STATS_TAG);
+					synchronized (mSurfaceHolder) {
+						logPools();
+					}
+				}
+			}
+			if (simulation != null) {
+				simulation.interrupt();
+				try {
+					simulation.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Runs the simulation steps that are due, or just drains the input
+		 * while the game isn't running, and publishes the result. Called with
+		 * the lock held.
+		 * 
+		 * @param now the time to simulate up to, from System.nanoTime()
+		 */
+		private void simulate(long now) {
+			if (mMode == GameState.RUNNING) {
+				frameStats.begin(FrameStats.Phase.UPDATE);
+				updateGame(now);
+				frameStats.end(FrameStats.Phase.UPDATE);
+			} else {
+				drainInput(); // no ticks run, but don't let the queue fill up
+			}
+			publishFrame(now);
+		}
+
+		/**
+		 * Runs {@link #simulate(long)} once per simulation step while the game
+		 * is running, and at the idle frame rate otherwise, for as long as
+		 * the render thread runs. Sleeps whenever the render thread would.
+		 */
+		private class SimulationThread extends Thread {
+
+			SimulationThread() {
+				super("Simulation");
+			}
+
+			@Override
+			public void run() {
+				long next = System.nanoTime();
+				try {
+					while (true) {
+						synchronized (GameThread.this) {
+							while (true) {
+								while (needToWait())
+									GameThread.this.wait();
+								if (mDone || !mRun)
+									return;
+								long now = System.nanoTime();
+								if (simulationWoken) {
+									simulationWoken = false;
+									next = now;
+								}
+								long delay = next - now;
+								if (delay <= 0)
+									break;
+								GameThread.this.wait(delay / 1000000, (int)(delay % 1000000)); // woken early by wakeUp()
+							}
+						}
+						synchronized (mSurfaceHolder) {
+							simulate(System.nanoTime());
+						}
+						next += mMode == GameState.RUNNING ? clock.getTickNanos() : 1000000000L / IDLE_FPS;
+						next = Math.max(next, System.nanoTime()); // don't try to catch up, the clock does that
+					}
+				} catch (InterruptedException e) {
+					// exiting
+				}
 			}
 		}
 
+		/**
+		 * Blocks while there is nothing worth drawing (paused, no focus or no
+		 * surface), then waits out the frame-rate cap, which is much lower
+		 * while the game is not running and so the picture doesn't change.
+		 * Any change of state wakes the thread up early.
+		 * 
+		 * While the game runs, frames start on the display's vsync where
+		 * there is one, and frameTime is set to the vsync's time, so frames
+		 * are paced and simulated in steps of whole refreshes. A vsync the
+		 * cap doesn't allow is skipped, and one that is over a refresh old
+		 * by the time it is seen is dropped in favour of the next, so a late
+		 * frame never makes the next one late too.
+		 * 
+		 * @return false if the thread should exit
+		 */
+		private boolean waitForNextFrame() {
+			try {
+				synchronized (this) {
+					long waitStart = System.nanoTime();
+					while (true) {
+						if (needToWait()) {
+							while (needToWait())
+								wait();
+							frameScheduler.reset(); // draw right away once we may again
+							frameStats.frameGap();
+							governor.frameGap();
+							waitStart = System.nanoTime();
+						}
+						if (mDone || !mRun)
+							return false;
+						long now = System.nanoTime();
+						boolean idle = mMode != GameState.RUNNING;
+						if (vsync != null && !idle) {
+							if (vsync.getFrames() != vsyncSeen) {
+								vsyncSeen = vsync.getFrames();
+								long vsyncTime = vsync.getFrameTime();
+								if (now - vsyncTime < refreshNanos && frameScheduler.isDue(vsyncTime, false, refreshNanos)) {
+									frameTime = vsyncTime;
+									break;
+								}
+							}
+							if (now - waitStart < VSYNC_TIMEOUT_NANOS && vsync.request()) {
+								wait(VSYNC_TIMEOUT_NANOS / 1000000); // woken by the vsync, or early by wakeUp()
+								continue;
+							}
+							// no vsync is coming, e.g. the UI thread is busy, so time this frame ourselves
+						}
+						long delay = frameScheduler.getDelay(now, idle);
+						if (delay == 0) {
+							frameTime = now;
+							break;
+						}
+						wait(delay / 1000000, (int)(delay % 1000000)); // woken early by wakeUp()
+					}
+					frameScheduler.frameStarted(frameTime);
+					return true;
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Logs how well tree nodes are being recycled. In a long game the
+		 * store's arrays stop growing and the pregenerator stops making new
+		 * stores, after which advancing allocates no nodes at all.
+		 */
+		private void logPools() {
+			Log.i(STATS_TAG, "Tree: " + tree.size() + " nodes, " + tree.getFreeCount() + " free, capacity "
+					+ tree.capacity() + ", " + tree.getReusedCount() + " reused, grown " + tree.getGrowCount() + " times");
+			if (pregenerator != null)
+				Log.i(STATS_TAG, "Pregenerator: " + pregenerator.getCreatedTreeCount() + " stores made, "
+						+ pregenerator.getSpareTreeCount() + " spare");
+		}
+
+		/**
+		 * Wakes the thread up if it is waiting for its next frame, so a state
+		 * change shows immediately.
+		 */
+		private void wakeUp() {
+			synchronized (this) {
+				frameScheduler.reset();
+				simulationWoken = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Shows or hides the frame timing overlay.
+		 */
+		public void setStatsOverlay(boolean show) {
+			synchronized (mSurfaceHolder) {
+				mShowStats = show;
+			}
+			wakeUp();
+		}
+
+		public boolean isStatsOverlayShown() {
+			return mShowStats;
+		}
+
+		/**
+		 * Asks the thread to write its frame timings to logcat at the end of
+		 * the next frame.
+		 */
+		public void requestStatsDump() {
+			mDumpStats = true;
+			wakeUp();
+		}
+
 		/**
 		 * Used to signal the thread whether it should be running or not.
 		 * Passing true allows the thread to run; passing false will shut it
@@ -192,6 +493,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 		 */
 		public void setRunning(boolean b) {
 			mRun = b;
+			wakeUp();
 		}
 
 		/**
@@ -218,6 +520,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 			synchronized (mSurfaceHolder) {
 				mMode = mode;
 			}
+			wakeUp();
 		}
 
 		/* Callback invoked when the surface dimensions change. */
@@ -227,6 +530,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 				mCanvasWidth = width;
 				mCanvasHeight = height;
 			}
+			wakeUp();
 		}
 
 		/**
@@ -235,41 +539,145 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 		public void unpause() {
 			// Move the real time clock up to now
 			synchronized (mSurfaceHolder) {
-				mLastTime = System.currentTimeMillis() + 100;
+				clock.start(System.nanoTime() + START_DELAY_NANOS);
 			}
 			setState(GameState.RUNNING);
 		}
 
 		/**
-		 * Handles a key-down event.
+		 * Dump game state to the provided Bundle. Typically called when the
+		 * Activity is being suspended. The tree is stored as it is, so
+		 * restoring it doesn't generate anything.
 		 * 
-		 * @param keyCode the key that was pressed
-		 * @param msg the lastPointal event object
-		 * @return true
+		 * @param map the Bundle to save into
 		 */
-		boolean doKeyDown(int keyCode, KeyEvent msg) {
-			boolean handled = false;
+		public void saveState(Bundle map) {
 			synchronized (mSurfaceHolder) {
-				if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT){
-					dRight = true;
-					handled = true;
+				if (map == null || root == TreeStore.NONE)
+					return;
+				GameSnapshot snapshot = new GameSnapshot();
+				snapshot.branchLength = branchLength;
+				snapshot.branchingFactor = BRANCHING_FACTOR;
+				snapshot.lookahead = generator.getLookahead();
+				snapshot.seed = generator.getSeed();
+				snapshot.variation = generator.getVariation();
+				snapshot.originX = origin.getX();
+				snapshot.originY = origin.getY();
+				snapshot.angleToRotate = angleToRotate;
+				snapshot.dX = dX;
+				snapshot.dY = dY;
+				snapshot.dXSinceReadjust = dXSinceReadjust;
+				snapshot.dYSinceReadjust = dYSinceReadjust;
+				snapshot.decision = decision;
+				snapshot.shouldSave = shouldSave;
+				snapshot.needsToRotate = needsToRotate;
+				snapshot.hasMatrix = movingMatrix != null;
+				if (movingMatrix != null)
+					movingMatrix.getValues(snapshot.matrix);
+				snapshot.ticks = clock.getTicks();
+				snapshot.droppedTicks = clock.getDroppedTicks();
+				snapshot.tree = tree;
+				snapshot.previousRoot = previousRoot;
+				snapshot.root = root;
+				if (snapshot.getEncodedSize() <= MAX_BUNDLE_SNAPSHOT) {
+					map.putByteArray(KEY_SNAPSHOT, snapshot.toByteArray());
+				} else {
+					File file = new File(mContext.getCacheDir(), "snapshot.bin");
+					try {
+						snapshot.writeTo(file);
+						map.putString(KEY_SNAPSHOT_FILE, file.getPath());
+					} catch (IOException e) {
+						Log.e("GameThread", "Could not save snapshot", e);
+					}
 				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT){
-					dLeft = true;
-					handled = true;
+			}
+		}
+
+		/**
+		 * Restores game state from the indicated Bundle. Typically called
+		 * when the Activity is being restored after having been previously
+		 * destroyed. The game comes back paused.
+		 * 
+		 * @param savedState Bundle containing the game state
+		 * @return false if there was nothing to restore
+		 */
+		public boolean restoreState(Bundle savedState) {
+			synchronized (mSurfaceHolder) {
+				TreeStore restored = new TreeStore();
+				GameSnapshot snapshot;
+				TreeGenerator restoredGenerator;
+				try {
+					byte[] bytes = savedState.getByteArray(KEY_SNAPSHOT);
+					String path = savedState.getString(KEY_SNAPSHOT_FILE);
+					if (bytes != null)
+						snapshot = GameSnapshot.fromByteArray(bytes, restored);
+					else if (path != null)
+						snapshot = GameSnapshot.readFrom(new File(path), restored);
+					else
+						return false;
+					// before anything is changed, so a bad snapshot leaves the game as it was
+					restoredGenerator = new TreeGenerator(restored, snapshot.branchLength, snapshot.branchingFactor, snapshot.lookahead);
+					restoredGenerator.setSeed(snapshot.seed);
+					restoredGenerator.setVariation(snapshot.variation);
+					restoredGenerator.setNodeBudget(NODE_BUDGET);
+				} catch (IOException e) {
+					Log.e("GameThread", "Could not restore snapshot", e);
+					return false;
+				} catch (IllegalArgumentException e) {
+					Log.e("GameThread", "Could not restore snapshot", e);
+					return false;
 				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_UP){
-					dUp = true;
-					handled = true;
+				origin = new Point(snapshot.originX, snapshot.originY);
+				branchLength = snapshot.branchLength;
+				angleToRotate = snapshot.angleToRotate;
+				dX = snapshot.dX;
+				dY = snapshot.dY;
+				dXSinceReadjust = snapshot.dXSinceReadjust;
+				dYSinceReadjust = snapshot.dYSinceReadjust;
+				decision = snapshot.decision;
+				shouldSave = snapshot.shouldSave;
+				needsToRotate = snapshot.needsToRotate;
+				if (snapshot.hasMatrix) {
+					stationaryMatrix = new Matrix(null);
+					movingMatrix = new Matrix(null);
+					movingMatrix.setValues(snapshot.matrix);
 				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN){
-					dDown = true;
-					handled = true;
+				clock.restore(snapshot.ticks, snapshot.droppedTicks);
+				tree = restored;
+				previousRoot = snapshot.previousRoot;
+				root = snapshot.root;
+				if (pregenerator == null) {
+					pregenerator = new BranchPregenerator();
+					pregenerator.start();
 				}
-				return handled;
+				generator = restoredGenerator;
+				generator.setPregenerator(pregenerator);
+				generator.resume(root);
+				appliedQuality = -1;
+				treeLines.invalidate();
+				renderEpoch++;
+				setState(GameState.PAUSE);
+				thread.setRunning(true);
+				if (thread.getState() == Thread.State.NEW)
+					thread.start();
+				return true;
 			}
 		}
 
+		/**
+		 * Handles a key-down event.
+		 * 
+		 * @param keyCode the key that was pressed
+		 * @param msg the lastPointal event object
+		 * @return true
+		 */
+		boolean doKeyDown(int keyCode, KeyEvent msg) {
+			if (!isDirectionKey(keyCode))
+				return false;
+			post(InputQueue.KEY_DOWN, keyCode);
+			return true;
+		}
+
 		/**
 		 * Handles a key-up event.
 		 * 
@@ -278,63 +686,214 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 		 * @return true if the key was handled and consumed, or else false
 		 */
 		boolean doKeyUp(int keyCode, KeyEvent msg) {
-			boolean handled = false;
-			synchronized (mSurfaceHolder) {
-				if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT){
-					dRight = false;
-					handled = true;
-				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT){
-					dLeft = false;
-					handled = true;
-				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_UP){
-					dUp = false;
-					handled = true;
-				}
-				if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN){
-					dDown = false;
-					handled = true;
+			if (!isDirectionKey(keyCode))
+				return false;
+			post(InputQueue.KEY_UP, keyCode);
+			return true;
+		}
+
+		/**
+		 * Handles a swipe choosing the branch to take at the next advance.
+		 * 
+		 * @param choice the child of the root to move to
+		 */
+		void doSwipe(int choice) {
+			post(InputQueue.SWIPE, choice);
+		}
+
+		/**
+		 * Handles a tap, which chooses the branch drawn nearest to it.
+		 * 
+		 * @param x where the screen was tapped, in pixels
+		 */
+		void doTap(float x, float y) {
+			post(InputQueue.TAP, InputQueue.packPoint(Math.round(x), Math.round(y)));
+		}
+
+		/**
+		 * Queues an event for the game thread. Never blocks, so it is safe
+		 * on the UI thread while a frame is being drawn.
+		 */
+		private void post(int type, int value) {
+			if (!input.offer(type, value))
+				Log.w("GameThread", "Input queue full, dropped event " + type);
+		}
+
+		private boolean isDirectionKey(int keyCode) {
+			return keyCode == KeyEvent.KEYCODE_DPAD_RIGHT || keyCode == KeyEvent.KEYCODE_DPAD_LEFT
+					|| keyCode == KeyEvent.KEYCODE_DPAD_UP || keyCode == KeyEvent.KEYCODE_DPAD_DOWN;
+		}
+
+		/**
+		 * Applies every queued input event. Only called on the game thread.
+		 */
+		private void drainInput() {
+			for (int event = input.poll(); event != InputQueue.EMPTY; event = input.poll()) {
+				int value = InputQueue.getValue(event);
+				switch (InputQueue.getType(event)) {
+					case InputQueue.KEY_DOWN:
+						setDirection(value, true);
+						break;
+					case InputQueue.KEY_UP:
+						setDirection(value, false);
+						break;
+					case InputQueue.SWIPE:
+						decision = value;
+						break;
+					case InputQueue.TAP:
+						chooseAt(InputQueue.getX(value), InputQueue.getY(value));
+						break;
 				}
-				return handled;
 			}
 		}
 
+		/**
+		 * Chooses the child of the root whose branch, or anything drawn
+		 * below it, is nearest to a point on the screen, if anything is
+		 * within tapRadius of it. Looks the point up in the grid of the
+		 * nodes on screen instead of walking the tree.
+		 */
+		private void chooseAt(float x, float y) {
+			if (root == TreeStore.NONE || movingMatrix == null)
+				return;
+			if (!treeLines.isBuiltFrom(tree)) { // the root advanced since the last frame
+				treeLines.update(tree, previousRoot, origin.getX(), origin.getY(), viewport);
+				nodeGrid.update(treeLines);
+			}
+			movingMatrix.invert(inverseMatrix);
+			tapPoint[0] = x;
+			tapPoint[1] = y;
+			inverseMatrix.mapPoints(tapPoint);
+			int node = nodeGrid.find(tapPoint[0], tapPoint[1], inverseMatrix.mapRadius(tapRadius));
+			while (node != TreeStore.NONE && tree.getParent(node) != root)
+				node = tree.getParent(node); // up to the child of the root it is under, if any
+			if (node != TreeStore.NONE)
+				decision = node - tree.getFirstChild(root);
+		}
+
+		private void setDirection(int keyCode, boolean down) {
+			if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT)
+				dRight = down;
+			if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT)
+				dLeft = down;
+			if (keyCode == KeyEvent.KEYCODE_DPAD_UP)
+				dUp = down;
+			if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN)
+				dDown = down;
+		}
+
 
-		private void doDraw(Canvas canvas) {
+		/**
+		 * Copies what the next frame shows into the back render state and
+		 * publishes it, then moves the moving matrix on for the frame after.
+		 * Called with the lock held; everything that changes the tree or the
+		 * matrix happens here or in updateGame(), never while drawing.
+		 * 
+		 * @param now when the state is published, from System.nanoTime()
+		 */
+		private void publishFrame(long now) {
 			//Initialize Matrices to Empty
 			if(stationaryMatrix == null) {
 				stationaryMatrix = new Matrix(null); //identity matrix
 				movingMatrix = new Matrix(null); //identity matrix
 			}
-			
-			if (root != null && canvas != null) //only draw tree if not null
+			RenderState state = renderStates.getBack();
+			state.time = now;
+			state.epoch = renderEpoch;
+			state.root = root;
+			state.previousRoot = previousRoot;
+			state.showStats = mShowStats;
+			if (root == TreeStore.NONE) {
+				renderStates.publish();
+				return;
+			}
+			movingMatrix.getValues(state.matrix);
+			state.originX = origin.getX();
+			state.originY = origin.getY();
+			state.rootDx = tree.getDx(root);
+			state.rootDy = tree.getDy(root);
+			state.previousRootDx = tree.getDx(previousRoot);
+			state.previousRootDy = tree.getDy(previousRoot);
+			// the screen in tree coordinates, so off-screen subtrees can be skipped
+			movingMatrix.invert(inverseMatrix);
+			screen.set(0, 0, mCanvasWidth, mCanvasHeight);
+			inverseMatrix.mapRect(screen);
+			viewport.set(screen.left, screen.top, screen.right, screen.bottom);
+			state.viewport.set(viewport);
+			int q = quality;
+			if (q != appliedQuality) {
+				if (generator.getLookahead() != QUALITY_LOOKAHEAD[q]) {
+					generator.setLookahead(QUALITY_LOOKAHEAD[q]); // from the next advance on
+					generator.requestNext(root); // what was prepared has the old depth
+				}
+				appliedQuality = q;
+			}
+			generator.fit(root, origin.getX(), origin.getY(), viewport); // evict or regrow off-screen branches
+			float[] m = state.matrix;
+			treeLines.setDetail((float)Math.sqrt(Math.abs(m[0] * m[4] - m[1] * m[3])), DETAIL_PIXELS); // the matrix's scale
+			treeLines.update(tree, previousRoot, origin.getX(), origin.getY(), viewport);
+			nodeGrid.update(treeLines);
+			state.lines.copyFrom(treeLines); // only copies after the buffer was refilled
+			renderStates.publish();
+
+			movingMatrix.preTranslate(dX, dY); //Does Translation
+			dX = 0; //consumed, so frames without a simulation step (or while paused) don't scroll
+			dY = 0;
+
+			if (shouldSave) {
+				//Revert the moving matrix to the static method
+				movingMatrix.set(stationaryMatrix);
+				renderEpoch++; // a jump, not to be interpolated
+				
+				//********Correct Translation Properly
+				//movingMatrix.preTranslate(84.5f, 0);
+				//movingMatrix.preTranslate(root.getDisplacement().getX(),root.getTreeLevel().get);
+				//********
+				shouldSave = false;//reset it
+				
+				if(needsToRotate)
+				{
+					Point about = Point.translate(origin, tree.getDx(previousRoot), tree.getDy(previousRoot), pivot);
+					//Point about = Point.translate(origin, root.getDisplacement().getX(), root.getDisplacement().getY());
+					//canvas.rotate(-30,about.getX(),about.getY());
+					movingMatrix.preRotate((float)(-angleToRotate),about.getX(),about.getY());
+					needsToRotate = false;
+				}
+			}
+		}
+
+		/**
+		 * Draws a frame from a published render state, with the given moving
+		 * matrix. Touches nothing else of the game state, so it runs without
+		 * the lock.
+		 */
+		private void doDraw(Canvas canvas, RenderState state, float[] matrix) {
+			scratch.reset();
+			renderer.setCanvas(canvas);
+			renderer.setAntiAlias(QUALITY_ANTI_ALIAS[quality]);
+			
+			if (state.hasTree() && canvas != null) //only draw tree if not null
 			{
 				//*****************STATIC STUFF**********************
 				//Reset To STATIC canvas
-				canvas.setMatrix(stationaryMatrix);
+				renderer.setTransform(null); // the stationary matrix is the identity
 				
 				//Clear Background as black
-				canvas.drawARGB(255, 0, 0, 0);
-				Paint pm = new Paint();
-				
-				//Write info about ROOT
-				pm.setColor(Color.MAGENTA);
-				canvas.drawText("root: "+root.getDisplacement().toString(), 10, 10, pm);
+				renderer.clear(Color.BLACK);
 				
-				//Write info about PREVROOT
-				pm.setColor(Color.YELLOW);
-				canvas.drawText("prevroot: "+previousRoot.getDisplacement().toString(), 10, 20, pm);
-				
-				//Write info about ORIGIN
-				pm.setColor(Color.GREEN);
-				canvas.drawText("origin" +origin.toString(), 10, 30, pm);
+				//Write info about ROOT, PREVROOT and ORIGIN
+				hud.set(state.rootDx, state.rootDy, state.previousRootDx, state.previousRootDy,
+						state.originX, state.originY);
+				hud.draw(renderer);
+
+				if (state.showStats)
+					frameStats.draw(renderer, Color.WHITE, 10, 50, 10);
 
 				//***************************************
 				
 				//*****************MOVING STUFF**********************
 				//Set canvas to moving matrix
-				canvas.setMatrix(movingMatrix);
+				renderer.setTransform(matrix);
 				
 				//draw the Cartesian axis
 				/*pm.setColor(Color.BLUE);
@@ -342,126 +901,75 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 				pm.setColor(Color.RED);
 				canvas.drawLine(origin.getX(), origin.getY(), origin.getX(),0, pm);*/
 			
-				drawTree(canvas, previousRoot,origin,pm);//draw the tree
+				drawTree(renderer, state);//draw the tree
 				
 				//DRAW PREVROOT LOC:
-				pm.setColor(Color.YELLOW);
-				Point prevRootAbsolute = Point.translate(origin, previousRoot.getDisplacement().getX(), previousRoot.getDisplacement().getY());
-				canvas.drawCircle(prevRootAbsolute.getX(), prevRootAbsolute.getY(), 7, pm);
+				Point originOfDrawing = scratch.obtain(state.originX, state.originY);
+				Point prevRootAbsolute = Point.translate(originOfDrawing, state.previousRootDx, state.previousRootDy, scratch.obtain());
+				renderer.drawCircle(prevRootAbsolute.getX(), prevRootAbsolute.getY(), 7, Color.YELLOW);
 				
 				//DRAW ROOT LOC:
-				pm.setColor(Color.MAGENTA);
-				Point rootAbsolute = Point.translate(prevRootAbsolute, root.getDisplacement().getX(), root.getDisplacement().getY());
-				canvas.drawCircle(rootAbsolute.getX(), rootAbsolute.getY(), 5, pm);
+				Point rootAbsolute = Point.translate(prevRootAbsolute, state.rootDx, state.rootDy, scratch.obtain());
+				renderer.drawCircle(rootAbsolute.getX(), rootAbsolute.getY(), 5, Color.MAGENTA);
 				
 				//DRAW ORIGIN LOC:
-				pm.setColor(Color.GREEN);
-				canvas.drawCircle(origin.getX(), origin.getY(), 3, pm);		
-
-				movingMatrix.preTranslate(dX, dY); //Does Translation
-
-				if (shouldSave) {
-					//Revert the moving matrix to the static method
-					movingMatrix.set(stationaryMatrix);
-					
-					//********Correct Translation Properly
-					//movingMatrix.preTranslate(84.5f, 0);
-					//movingMatrix.preTranslate(root.getDisplacement().getX(),root.getTreeLevel().get);
-					//********
-					canvas.setMatrix(movingMatrix);
-					shouldSave = false;//reset it
-					
-					if(needsToRotate)
-					{
-						Point about = Point.translate(origin, previousRoot.getDisplacement().getX(), previousRoot.getDisplacement().getY());
-						//Point about = Point.translate(origin, root.getDisplacement().getX(), root.getDisplacement().getY());
-						//canvas.rotate(-30,about.getX(),about.getY());
-						movingMatrix.preRotate((float)(-angleToRotate),about.getX(),about.getY());
-						needsToRotate = false;
-					}
-				}
+				renderer.drawCircle(originOfDrawing.getX(), originOfDrawing.getY(), 3, Color.GREEN);		
 				
 				//***************************************
 				
 			}
 		}
 		
-		public void drawTree(Canvas canvas,TreeNode current,Point absoluteOriginOfDrawing, Paint pm)
+		/**
+		 * Draws every branch below previousRoot. The vertex buffer is refilled
+		 * by publishFrame() only when the tree has changed, and the bitmap it
+		 * is cached in is only redrawn then, so most frames just draw the
+		 * bitmap with the moving matrix.
+		 */
+		public void drawTree(Renderer renderer, RenderState state)
 		{
-			pm.setColor(Color.WHITE);
-			if(current.getDisplacement() == null)
-				return;
-			//draw from the last node to this node (in the case of root, draw offscreen to this node)
-			if(current.getChildren() == null)
-				return;
-			int i = 0;
-			for(TreeNode child : current.getChildren()) //draw from this node to every child node, then do the same for them (recurse)
-			{
-				if (child == null || child.getDisplacement() == null)
-					continue;
-				/*if(i==0)
-					pm.setColor(Color.MAGENTA);
-				else if ( i==1)
-					pm.setColor(Color.YELLOW);
-				else if (i==2)
-					pm.setColor(Color.GREEN);
-*/
-				//draw from this node to the child
-				Point currentAbsolutePoint = Point.translate(absoluteOriginOfDrawing, current.getDisplacement().getX(),current.getDisplacement().getY());
-				Point childsAbsolutePoint = Point.translate(currentAbsolutePoint, child.getDisplacement().getX(),child.getDisplacement().getY());
-				canvas.drawLine(currentAbsolutePoint.getX(), currentAbsolutePoint.getY() , childsAbsolutePoint.getX(), childsAbsolutePoint.getY(), pm); 
-				drawTree(canvas,child,currentAbsolutePoint,pm); //draw this child and its children!
-				i++;
-			}
+			frameStats.begin(FrameStats.Phase.TREE);
+			renderer.drawLines(state.lines, Color.WHITE);
+			frameStats.end(FrameStats.Phase.TREE);
 		}
 
 		/**
-		 * Updates the game.
+		 * Updates the game: runs as many fixed simulation steps as real time
+		 * allows since the last update.
+		 * 
+		 * @param now the time to simulate up to, the frame's vsync if there is one
 		 */
-		private void updateGame() {
-			//// <DoNotRemove>
-			long now = System.currentTimeMillis();
-			// Do nothing if mLastTime is in the future.
-			// This allows the game-start to delay the start of the physics
-			// by 100ms or whatever.
-			if (mLastTime > now) 
-				return;
-			elapsed = (now - mLastTime);
-			mLastTime = now;
-			//// </DoNotRemove>
-
+		private void updateGame(long now) {
 			/*
-			 * Why use mLastTime, now and elapsed?
+			 * Why use a fixed step?
 			 * Well, because the frame rate isn't always constant, it could happen your normal frame rate is 25fps
-			 * then your char will walk at a steady pace, but when your frame rate drops to say 12fps, without elapsed
-			 * your character will only walk half as fast as at the 25fps frame rate. Elapsed lets you manage the slowdowns
-			 * and speedups!
+			 * then your char will walk at a steady pace, but when your frame rate drops to say 12fps, your character
+			 * will only walk half as fast as at the 25fps frame rate. The clock hands out real time in equal steps,
+			 * so every step does the same work and the outcome doesn't depend on the frame rate.
 			 */
-			dX = (float)((elapsed)*SPEED*0); //the total change in dX this timestep
-			dY = (float)((elapsed)*SPEED*1); //the total change in dY this timestep
-			dXSinceReadjust = (float)((now - lastReadjustTime)*SPEED*0);
-			dYSinceReadjust = (float)((now - lastReadjustTime)*SPEED*1);
+			int ticks = clock.advance(now);
+			for (int i = 0; i < ticks; i++)
+				tick(clock.getTickMillis());
+		}
+
+		/**
+		 * Advances the simulation by one fixed step of the given length.
+		 */
+		private void tick(double stepMillis) {
+			drainInput();
+			float stepX = (float)(stepMillis*SPEED*coefficientDX);
+			float stepY = (float)(stepMillis*SPEED*coefficientDY);
+			dX += stepX; //the total change in dX since the last frame
+			dY += stepY; //the total change in dY since the last frame
+			dXSinceReadjust += stepX;
+			dYSinceReadjust += stepY;
 			//we are near the end node
 			//TODO: THIS NEEDS TO BE FIXED.
-			if(Math.sqrt(Math.pow(dXSinceReadjust,2) +Math.pow(dYSinceReadjust,2)) >= branchLength)
+			if(Point.length(dXSinceReadjust, dYSinceReadjust) >= branchLength)
 			{
-				previousRoot = root; // keep track of our last point for drawing
-				root = root.getChildren()[decision]; // branch on the tree, This is hacked, just choosing the center node
-				for(TreeNode child : root.getChildren())
-				{
-					child.branch(3, branchLength); //NEW, JULIAN
-					//child.branch(3, branchLength, Point.translate(root.getLocation(),0, dYSinceReadjust)); //OLD, CORY
-					/*//MORE RECURSION
-					for(TreeNode baby: child.getChildren())
-					{
-						baby.branch(3, branchLength, child.getLocation());
-						for(TreeNode zygote: baby.getChildren())
-						{
-							zygote.branch(3, branchLength, child.getLocation());
-						}
-					}*/
-				}
-				
+				root = generator.advance(root, decision); // branch on the tree, usually just swaps in a tree built in the background
+				tree = generator.getTree(); // may be a different store now, the old one is being reused
+				previousRoot = tree.getParent(root); // keep track of our last point for drawing
 				
 				//reset our accumulators
 				/*
@@ -469,10 +977,9 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 				float nextDispY = previousRoot.getLocation().getY()-root.getLocation().getY();
 				float magnitude = previousRoot.getLocation().distanceTo(root.getLocation()); 
 				*/
-				angleToRotate += (1-decision)*30;
+				angleToRotate += DirectionTable.stepsBetween(tree.getDirection(previousRoot), tree.getDirection(root))*30; //follow the branch, bent or not
 				dYSinceReadjust = 0;
 				dXSinceReadjust = 0;
-				lastReadjustTime = now;
 				shouldSave = true;
 				needsToRotate = true;
 				decision = 1;
@@ -488,14 +995,14 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
             synchronized(this) {
                 mHasSurface = true;
                 mContextLost = false;
-                notify();
+                notifyAll();
             }
         }
 
         public void surfaceDestroyed() {
             synchronized(this) {
                 mHasSurface = false;
-                notify();
+                notifyAll();
             }
         }
 
@@ -508,7 +1015,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
         public void onResume() {
             synchronized (this) {
                 mPaused = false;
-                notify();
+                notifyAll();
             }
         }
 
@@ -516,7 +1023,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
             synchronized (this) {
                 mHasFocus = hasFocus;
                 if (mHasFocus == true) {
-                    notify();
+                    notifyAll();
                 }
             }
         }
@@ -526,13 +1033,16 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
             // deadlock!
             synchronized(this) {
                 mDone = true;
-                notify();
+                notifyAll();
             }
             try {
                 join();
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
             }
+            if (pregenerator != null)
+                pregenerator.requestExitAndWait();
+            treeLayer.release();
         }
 	}
 
@@ -594,6 +1104,7 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 	public void onWindowFocusChanged(boolean hasWindowFocus) {
 		if (!hasWindowFocus)
 			thread.pause();
+		thread.onWindowFocusChanged(hasWindowFocus); // the thread sleeps while we have no focus
 	}
 
 	/* Callback invoked when the surface dimensions change. */
@@ -644,12 +1155,12 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 	        // right to left swipe
 	        if (velocityX < 0 ) 
 	        {
-	        	decision = 0;
+	        	thread.doSwipe(0);
 	        	Log.i("SWIPE", "LSWIPE");
 	        }
 	        // left to right swipe
 	        else {
-	        	decision = 2;
+	        	thread.doSwipe(2);
 	        	Log.i("SWIPE", "RSWIPE");
 	        }
 	            return true;
@@ -657,5 +1168,14 @@ class GameView extends SurfaceView implements SurfaceHolder.Callback {
 	            return false;
 
 	   }
+
+	   /**
+	    * A tap chooses the branch under it.
+	    */
+	   @Override
+	   public boolean onSingleTapUp(MotionEvent e) {
+	        thread.doTap(e.getX(), e.getY());
+	        return true;
+	   }
 	}
 }
@@ -0,0 +1,78 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import android.graphics.Color;
+
+/**
+ * The debug text in the corner of the screen: the displacement of root and
+ * previousRoot, and the drawing origin. The text is only rebuilt when one of
+ * the values actually changes, so an unchanged HUD costs three drawText
+ * calls and nothing else.
+ */
+public class Hud {
+
+	private final float[] values = new float[6]; // root x/y, prevroot x/y, origin x/y
+	private boolean dirty = true;
+
+	private final StringBuilder builder = new StringBuilder(32);
+	private String rootText = "";
+	private String prevRootText = "";
+	private String originText = "";
+
+	/**
+	 * Updates the values shown. Cheap if nothing changed.
+	 */
+	public void set(float rootX, float rootY, float prevRootX, float prevRootY, float originX, float originY)
+	{
+		update(0, rootX);
+		update(1, rootY);
+		update(2, prevRootX);
+		update(3, prevRootY);
+		update(4, originX);
+		update(5, originY);
+	}
+
+	/**
+	 * Forces the text to be rebuilt on the next draw.
+	 */
+	public void invalidate() {
+		dirty = true;
+	}
+
+	public void draw(Renderer renderer)
+	{
+		if (dirty)
+			layout();
+		//Write info about ROOT
+		renderer.drawText(rootText, 10, 10, Color.MAGENTA);
+		//Write info about PREVROOT
+		renderer.drawText(prevRootText, 10, 20, Color.YELLOW);
+		//Write info about ORIGIN
+		renderer.drawText(originText, 10, 30, Color.GREEN);
+	}
+
+	private void update(int i, float value)
+	{
+		// compare bits so NaN counts as unchanged
+		if (Float.floatToIntBits(values[i]) != Float.floatToIntBits(value))
+		{
+			values[i] = value;
+			dirty = true;
+		}
+	}
+
+	private void layout()
+	{
+		rootText = text("root: ", values[0], values[1]);
+		prevRootText = text("prevroot: ", values[2], values[3]);
+		originText = text("origin", values[4], values[5]);
+		dirty = false;
+	}
+
+	/** Same format as label + Point.toString(). */
+	private String text(String label, float x, float y)
+	{
+		builder.setLength(0);
+		builder.append(label).append('(').append(x).append(',').append(y).append(')');
+		return builder.toString();
+	}
+}
@@ -0,0 +1,120 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Bounded ring buffer of input events from the UI thread to the game thread.
+ * There is exactly one producer and one consumer, so the indices only need
+ * to be volatile: the producer writes a slot and then publishes it by moving
+ * tail, the consumer reads a slot and then frees it by moving head. Neither
+ * side ever waits for the other. A full queue refuses new events rather
+ * than block the UI thread; they are counted in {@link #getDropped()}.
+ *
+ * An event is a single int holding its type and value, so an event is
+ * always read whole.
+ */
+public class InputQueue {
+
+	/** A key was pressed; the value is the key code. */
+	public static final int KEY_DOWN = 1;
+	/** A key was released; the value is the key code. */
+	public static final int KEY_UP = 2;
+	/** A swipe chose a branch; the value is the decision. */
+	public static final int SWIPE = 3;
+	/** The screen was tapped; the value is the point, see {@link #packPoint(int, int)}. */
+	public static final int TAP = 4;
+
+	/** What {@link #poll()} returns if there is no event. */
+	public static final int EMPTY = 0;
+
+	private static final int TYPE_SHIFT = 24;
+	private static final int VALUE_MASK = (1 << TYPE_SHIFT) - 1;
+	private static final int COORDINATE_BITS = TYPE_SHIFT / 2;
+	private static final int COORDINATE_MASK = (1 << COORDINATE_BITS) - 1;
+
+	private final int[] events;
+	private final int mask;
+	private volatile int head; // next slot to read, only moved by the consumer
+	private volatile int tail; // next slot to write, only moved by the producer
+	private volatile int dropped;
+
+	/**
+	 * @param capacity the number of events it can hold, rounded up to a
+	 *        power of two
+	 */
+	public InputQueue(int capacity)
+	{
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		events = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an event. Only call this from the producing thread.
+	 *
+	 * @param type one of KEY_DOWN, KEY_UP, SWIPE or TAP
+	 * @param value from 0 to 2^24 - 1
+	 * @return false if the queue was full and the event was dropped
+	 */
+	public boolean offer(int type, int value)
+	{
+		int t = tail;
+		if (t - head == events.length)
+		{
+			dropped++;
+			return false;
+		}
+		events[t & mask] = type << TYPE_SHIFT | value & VALUE_MASK;
+		tail = t + 1; // publishes the slot
+		return true;
+	}
+
+	/**
+	 * Takes the oldest event. Only call this from the consuming thread.
+	 *
+	 * @return the event, or EMPTY
+	 */
+	public int poll()
+	{
+		int h = head;
+		if (h == tail)
+			return EMPTY;
+		int event = events[h & mask];
+		head = h + 1; // frees the slot
+		return event;
+	}
+
+	public static int getType(int event) {
+		return event >>> TYPE_SHIFT;
+	}
+
+	public static int getValue(int event) {
+		return event & VALUE_MASK;
+	}
+
+	/**
+	 * Packs a point on the screen into an event value. Coordinates are
+	 * clamped to 0 to 4095.
+	 */
+	public static int packPoint(int x, int y)
+	{
+		x = Math.max(0, Math.min(COORDINATE_MASK, x));
+		y = Math.max(0, Math.min(COORDINATE_MASK, y));
+		return x << COORDINATE_BITS | y;
+	}
+
+	public static int getX(int value) {
+		return value >>> COORDINATE_BITS;
+	}
+
+	public static int getY(int value) {
+		return value & COORDINATE_MASK;
+	}
+
+	/**
+	 * @return the number of events refused because the queue was full
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,172 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the nodes drawn by a {@link TreeLines}, for finding the
+ * node drawn nearest to a point, like the one a player tapped, without
+ * looking at every node. A node is where the line to it ends.
+ *
+ * The grid is in the coordinates of the lines, so scrolling doesn't change
+ * it; it is only rebuilt when the buffer is refilled, by a counting sort of
+ * the nodes into flat per-cell arrays. Cells are sized so there are about
+ * as many as there are nodes, which keeps a query down to the few nodes
+ * around the point. A rebuild only allocates when the buffer has grown.
+ */
+public class NodeGrid {
+
+	private final float minCellSize;
+
+	private boolean built;
+	private int builtVersion;
+
+	private float left;
+	private float top;
+	private float cellSize;
+	private int columns;
+	private int rows;
+	private int[] cellStart = new int[1]; // nodes of cell c are at cellStart[c] up to cellStart[c + 1]
+	// the nodes and their positions, sorted by cell
+	private int[] nodes = new int[0];
+	private float[] xs = new float[0];
+	private float[] ys = new float[0];
+	private int count;
+
+	/**
+	 * @param minCellSize the smallest cell, in the coordinates of the lines
+	 */
+	public NodeGrid(float minCellSize)
+	{
+		if (minCellSize <= 0)
+			throw new IllegalArgumentException("Cell size must be positive: " + minCellSize);
+		this.minCellSize = minCellSize;
+	}
+
+	/**
+	 * Makes sure the grid holds the nodes of the lines, rebuilding it if
+	 * they were refilled since.
+	 */
+	public void update(TreeLines lines)
+	{
+		if (built && lines.getVersion() == builtVersion)
+			return;
+		build(lines);
+		built = true;
+		builtVersion = lines.getVersion();
+	}
+
+	/**
+	 * Finds the node nearest to a point.
+	 *
+	 * @param radius how far from the point the node may be
+	 * @return the node, or {@link TreeStore#NONE} if there is none that near
+	 */
+	public int find(float x, float y, float radius)
+	{
+		if (count == 0)
+			return TreeStore.NONE;
+		int firstColumn = Math.max(0, column(x - radius));
+		int lastColumn = Math.min(columns - 1, column(x + radius));
+		int firstRow = Math.max(0, row(y - radius));
+		int lastRow = Math.min(rows - 1, row(y + radius));
+		int nearest = TreeStore.NONE;
+		float nearestDistance = radius * radius;
+		for (int r = firstRow; r <= lastRow; r++)
+		{
+			for (int c = firstColumn; c <= lastColumn; c++)
+			{
+				int cell = r * columns + c;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++)
+				{
+					float dx = xs[i] - x;
+					float dy = ys[i] - y;
+					float distance = dx * dx + dy * dy;
+					if (distance <= nearestDistance)
+					{
+						nearest = nodes[i];
+						nearestDistance = distance;
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * @return the number of nodes in the grid
+	 */
+	public int size() {
+		return count;
+	}
+
+	private void build(TreeLines lines)
+	{
+		count = lines.getLineCount();
+		if (count == 0)
+			return;
+		float right = -Float.MAX_VALUE;
+		float bottom = -Float.MAX_VALUE;
+		left = top = Float.MAX_VALUE;
+		for (int i = 0; i < count; i++)
+		{
+			left = Math.min(left, lines.getEndX(i));
+			right = Math.max(right, lines.getEndX(i));
+			top = Math.min(top, lines.getEndY(i));
+			bottom = Math.max(bottom, lines.getEndY(i));
+		}
+		float width = right - left;
+		float height = bottom - top;
+		cellSize = Math.max(minCellSize, (float)Math.sqrt(width * height / count));
+		fit(width, height);
+		while ((long)columns * rows > 4L * count + 16) // a long thin tree, don't make a cell per node along it
+		{
+			cellSize *= 2;
+			fit(width, height);
+		}
+
+		int cells = columns * rows;
+		if (cellStart.length < cells + 1)
+			cellStart = new int[cells + 1];
+		else
+			Arrays.fill(cellStart, 0, cells + 1, 0);
+		if (nodes.length < count)
+		{
+			nodes = new int[count];
+			xs = new float[count];
+			ys = new float[count];
+		}
+		for (int i = 0; i < count; i++)
+			cellStart[cell(lines.getEndX(i), lines.getEndY(i)) + 1]++;
+		for (int c = 0; c < cells; c++)
+			cellStart[c + 1] += cellStart[c];
+		// fill every cell from its start, which moves each start to the next cell's
+		for (int i = 0; i < count; i++)
+		{
+			int at = cellStart[cell(lines.getEndX(i), lines.getEndY(i))]++;
+			nodes[at] = lines.getNode(i);
+			xs[at] = lines.getEndX(i);
+			ys[at] = lines.getEndY(i);
+		}
+		for (int c = cells; c > 0; c--)
+			cellStart[c] = cellStart[c - 1];
+		cellStart[0] = 0;
+	}
+
+	private void fit(float width, float height)
+	{
+		columns = (int)(width / cellSize) + 1;
+		rows = (int)(height / cellSize) + 1;
+	}
+
+	private int cell(float x, float y) {
+		return row(y) * columns + column(x);
+	}
+
+	private int column(float x) {
+		return Math.min(columns - 1, (int)Math.floor((x - left) / cellSize));
+	}
+
+	private int row(float y) {
+		return Math.min(rows - 1, (int)Math.floor((y - top) / cellSize));
+	}
+}
@@ -0,0 +1,40 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Hashes for positions in the tree. Every node has a key derived from its
+ * parent's key and its place among its siblings, and the top of the tree
+ * gets one derived from the game's seed, so a node's key depends on nothing
+ * but the seed and the path to it. Anything generated from the key comes out
+ * the same however often the node is released and grown again.
+ *
+ * The mixing function is the SplitMix64 finalizer.
+ */
+final class PathHash {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private PathHash() {
+	}
+
+	/**
+	 * @return the key of child i of a node with the given key
+	 */
+	static long child(long parentKey, int i) {
+		return mix(parentKey + (i + 1) * GOLDEN_GAMMA);
+	}
+
+	static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return a number from 0 (inclusive) to 1 (exclusive) taken from the key
+	 *         and a salt, so one key can feed several independent choices
+	 */
+	static float unit(long key, int salt) {
+		return (mix(key ^ salt * GOLDEN_GAMMA) >>> 40) / (float)(1 << 24);
+	}
+}
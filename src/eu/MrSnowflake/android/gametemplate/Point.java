@@ -42,6 +42,29 @@ public class Point {
 		return new Point (p.getX() + dx, p.getY() + dy);
 	}
 	
+	/**
+	 * Same as {@link #translate(Point, float, float)}, but writes the result
+	 * into out instead of allocating. out may be p itself.
+	 * 
+	 * @return out
+	 */
+	public static Point translate(Point p, float dx, float dy, Point out)
+	{
+		return out.set(p.getX() + dx, p.getY() + dy);
+	}
+	
+	public Point set(float x, float y)
+	{
+		this.x = x;
+		this.y = y;
+		return this;
+	}
+	
+	public Point set(Point p)
+	{
+		return set(p.getX(), p.getY());
+	}
+	
 	public float distanceTo(Point p)
 	{
 		float dX = p.x - x;
@@ -53,5 +76,24 @@ public class Point {
 	{
 		return new Point(this.x - p.getX(), this.y -p.getY());
 	}
+	
+	/**
+	 * Same as {@link #displacementTo(Point)}, but writes the result into out
+	 * instead of allocating.
+	 * 
+	 * @return out
+	 */
+	public Point displacementTo(Point p, Point out)
+	{
+		return out.set(this.x - p.getX(), this.y - p.getY());
+	}
+	
+	/**
+	 * @return the length of the vector (dx, dy)
+	 */
+	public static float length(float dx, float dy)
+	{
+		return (float)Math.sqrt((dx*dx) + (dy*dy));
+	}
 }
 
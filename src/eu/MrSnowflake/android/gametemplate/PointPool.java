@@ -0,0 +1,52 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Scratch {@link Point}s for a single thread. Points handed out by
+ * {@link #obtain()} stay valid until the next {@link #reset()}, after which
+ * they are handed out again, so a frame that resets the pool at its start
+ * allocates nothing once the pool has grown to the frame's needs.
+ */
+public class PointPool {
+
+	private Point[] points;
+	private int next;
+
+	public PointPool(int size)
+	{
+		points = new Point[Math.max(size, 1)];
+		for (int i = 0; i < points.length; i++)
+			points[i] = new Point(0, 0);
+	}
+
+	public Point obtain()
+	{
+		if (next == points.length)
+		{
+			Point[] grown = new Point[points.length * 2];
+			System.arraycopy(points, 0, grown, 0, points.length);
+			for (int i = points.length; i < grown.length; i++)
+				grown[i] = new Point(0, 0);
+			points = grown;
+		}
+		return points[next++];
+	}
+
+	public Point obtain(float x, float y)
+	{
+		return obtain().set(x, y);
+	}
+
+	/**
+	 * Takes back every point handed out since the last reset.
+	 */
+	public void reset() {
+		next = 0;
+	}
+
+	/**
+	 * @return the number of points the pool holds
+	 */
+	public int size() {
+		return points.length;
+	}
+}
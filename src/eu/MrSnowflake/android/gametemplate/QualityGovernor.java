@@ -0,0 +1,122 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Picks a quality level from measured frame times, to hold a target frame
+ * rate: level 0 is the cheapest, maxLevel the richest. Frame times are
+ * smoothed, and the level only drops after the average has been close to
+ * the target for DROP_FRAMES frames in a row, and only rises after it has
+ * been well below it for much longer. Every drop doubles the wait before
+ * the next rise, so a level that can't be held is not tried again and
+ * again.
+ *
+ * All times are in nanoseconds.
+ */
+public class QualityGovernor {
+
+	/** Above this fraction of the target the frame is too slow. */
+	private static final float SLOW = 0.9f;
+	/** Below this fraction of the target there is room for more. */
+	private static final float FAST = 0.5f;
+	private static final int DROP_FRAMES = 15;
+	private static final int MIN_RISE_FRAMES = 120;
+	private static final int MAX_RISE_FRAMES = 3840;
+	private static final int SMOOTHING = 8; // each frame moves the average 1/8 of the way
+
+	private long targetNanos;
+	private final int maxLevel;
+	private int level;
+
+	private float average;
+	private boolean measured; // whether average holds anything
+	private int slowFrames;
+	private int fastFrames;
+	private int riseFrames = MIN_RISE_FRAMES;
+
+	/**
+	 * @param targetNanos the frame time to stay under
+	 * @param maxLevel the richest level
+	 * @param level the level to start at
+	 */
+	public QualityGovernor(long targetNanos, int maxLevel, int level)
+	{
+		if (maxLevel < 0 || level < 0 || level > maxLevel)
+			throw new IllegalArgumentException("Bad quality level: " + level + " of " + maxLevel);
+		setTarget(targetNanos);
+		this.maxLevel = maxLevel;
+		this.level = level;
+	}
+
+	public void setTarget(long targetNanos)
+	{
+		if (targetNanos <= 0)
+			throw new IllegalArgumentException("Target frame time must be positive: " + targetNanos);
+		this.targetNanos = targetNanos;
+	}
+
+	/**
+	 * Records how long a frame took.
+	 *
+	 * @return whether the level changed
+	 */
+	public boolean frameFinished(long nanos)
+	{
+		if (!measured)
+		{
+			average = nanos;
+			measured = true;
+		}
+		else
+			average += (nanos - average) / SMOOTHING;
+		slowFrames = average > targetNanos * SLOW ? slowFrames + 1 : 0;
+		fastFrames = average < targetNanos * FAST ? fastFrames + 1 : 0;
+		if (slowFrames >= DROP_FRAMES && level > 0)
+		{
+			level--;
+			riseFrames = Math.min(riseFrames * 2, MAX_RISE_FRAMES);
+			frameGap(); // the new level is measured from scratch
+			return true;
+		}
+		if (fastFrames >= riseFrames && level < maxLevel)
+		{
+			level++;
+			frameGap(); // the new level is measured from scratch
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the frames so far, e.g. after the loop was paused, so slow or
+	 * idle frames before it don't count.
+	 */
+	public void frameGap()
+	{
+		measured = false;
+		slowFrames = 0;
+		fastFrames = 0;
+	}
+
+	/**
+	 * Forgets everything, including how often the level dropped.
+	 */
+	public void reset()
+	{
+		frameGap();
+		riseFrames = MIN_RISE_FRAMES;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * @return the smoothed frame time
+	 */
+	public long getAverage() {
+		return (long)average;
+	}
+}
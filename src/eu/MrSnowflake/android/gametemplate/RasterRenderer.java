@@ -0,0 +1,204 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.Arrays;
+
+/**
+ * {@link Renderer} that draws into an int array of ARGB pixels in plain
+ * Java, so the render path can run and be measured off the device. Lines
+ * are clipped to the raster and drawn one pixel wide, circles are filled,
+ * and colors are written without blending. Text is not rasterized, only
+ * counted.
+ *
+ * Transforms are affine: the perspective row of a matrix is ignored.
+ */
+public class RasterRenderer implements Renderer {
+
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+
+	// the transform: x' = a*x + b*y + c, y' = d*x + e*y + f
+	private float a = 1, b, c, d, e = 1, f;
+	private final float[] clipRange = new float[2]; // scratch for line()
+
+	private long linesDrawn;
+	private long pixelsDrawn;
+	private long circlesDrawn;
+	private long textsDrawn;
+
+	public RasterRenderer(int width, int height)
+	{
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Bad raster size: " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		pixels = new int[width * height];
+	}
+
+	public void clear(int color) {
+		Arrays.fill(pixels, color);
+	}
+
+	public void setTransform(float[] matrix)
+	{
+		if (matrix == null)
+		{
+			a = 1; b = 0; c = 0;
+			d = 0; e = 1; f = 0;
+			return;
+		}
+		a = matrix[0]; b = matrix[1]; c = matrix[2];
+		d = matrix[3]; e = matrix[4]; f = matrix[5];
+	}
+
+	public void drawLines(float[] points, int offset, int count, int color)
+	{
+		for (int i = offset; i + 3 < offset + count; i += 4)
+		{
+			float x0 = points[i], y0 = points[i + 1], x1 = points[i + 2], y1 = points[i + 3];
+			line(a * x0 + b * y0 + c, d * x0 + e * y0 + f, a * x1 + b * y1 + c, d * x1 + e * y1 + f, color);
+		}
+	}
+
+	public void drawLines(TreeLines lines, int color) {
+		lines.draw(this, color);
+	}
+
+	public void drawCircle(float x, float y, float radius, int color)
+	{
+		circlesDrawn++;
+		float cx = a * x + b * y + c;
+		float cy = d * x + e * y + f;
+		float r = radius * (float)Math.sqrt(Math.abs(a * e - b * d));
+		int top = Math.max(0, (int)Math.ceil(cy - r));
+		int bottom = Math.min(height - 1, (int)Math.floor(cy + r));
+		for (int py = top; py <= bottom; py++)
+		{
+			float half = (float)Math.sqrt(r * r - (py - cy) * (py - cy));
+			int left = Math.max(0, (int)Math.ceil(cx - half));
+			int right = Math.min(width - 1, (int)Math.floor(cx + half));
+			if (left <= right)
+			{
+				Arrays.fill(pixels, py * width + left, py * width + right + 1, color);
+				pixelsDrawn += right - left + 1;
+			}
+		}
+	}
+
+	public void drawText(String text, float x, float y, int color) {
+		textsDrawn++;
+	}
+
+	public void drawText(char[] text, int start, int length, float x, float y, int color) {
+		textsDrawn++;
+	}
+
+	/**
+	 * Clips a line to the raster (Liang-Barsky), then steps along it one
+	 * pixel at a time.
+	 */
+	private void line(float x0, float y0, float x1, float y1, int color)
+	{
+		linesDrawn++;
+		float dx = x1 - x0;
+		float dy = y1 - y0;
+		float[] t = clipRange;
+		t[0] = 0;
+		t[1] = 1;
+		if (!clip(-dx, x0, t) || !clip(dx, width - 1 - x0, t) || !clip(-dy, y0, t) || !clip(dy, height - 1 - y0, t))
+			return; // entirely outside
+		float sx = x0 + t[0] * dx, sy = y0 + t[0] * dy;
+		float ex = x0 + t[1] * dx, ey = y0 + t[1] * dy;
+		int steps = (int)Math.ceil(Math.max(Math.abs(ex - sx), Math.abs(ey - sy)));
+		float stepX = steps == 0 ? 0 : (ex - sx) / steps;
+		float stepY = steps == 0 ? 0 : (ey - sy) / steps;
+		for (int i = 0; i <= steps; i++)
+		{
+			int px = Math.round(sx + i * stepX);
+			int py = Math.round(sy + i * stepY);
+			if (px >= 0 && px < width && py >= 0 && py < height)
+			{
+				pixels[py * width + px] = color;
+				pixelsDrawn++;
+			}
+		}
+	}
+
+	/**
+	 * Narrows the parameter range [t[0], t[1]] of a line to the side of one
+	 * clip edge, where p is the line's direction against the edge and q the
+	 * start's distance from it.
+	 *
+	 * @return false if nothing of the line is left
+	 */
+	private static boolean clip(float p, float q, float[] t)
+	{
+		if (p == 0)
+			return q >= 0;
+		float r = q / p;
+		if (p < 0)
+		{
+			if (r > t[1])
+				return false;
+			if (r > t[0])
+				t[0] = r;
+		}
+		else
+		{
+			if (r < t[0])
+				return false;
+			if (r < t[1])
+				t[1] = r;
+		}
+		return true;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the raster itself, row by row
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	public int getPixel(int x, int y) {
+		return pixels[y * width + x];
+	}
+
+	/**
+	 * @return the number of lines drawn, including ones clipped away
+	 */
+	public long getLinesDrawn() {
+		return linesDrawn;
+	}
+
+	/**
+	 * @return the number of pixels written
+	 */
+	public long getPixelsDrawn() {
+		return pixelsDrawn;
+	}
+
+	public long getCirclesDrawn() {
+		return circlesDrawn;
+	}
+
+	public long getTextsDrawn() {
+		return textsDrawn;
+	}
+
+	public void resetCounters()
+	{
+		linesDrawn = 0;
+		pixelsDrawn = 0;
+		circlesDrawn = 0;
+		textsDrawn = 0;
+	}
+}
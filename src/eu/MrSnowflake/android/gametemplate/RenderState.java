@@ -0,0 +1,134 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything a frame shows, copied out of the game state once the
+ * simulation is done with it, so drawing the frame needs no lock and never
+ * looks at the tree: the branches come as a copy of the vertex buffer.
+ * Instances are handed from the simulation to the renderer through a
+ * {@link Buffer}.
+ */
+public class RenderState {
+
+	int root = TreeStore.NONE;
+	int previousRoot = TreeStore.NONE;
+	/** The branches below previousRoot. */
+	final TreeLines lines = new TreeLines();
+	/** The moving matrix, as {@link android.graphics.Matrix#getValues(float[])} gives it. */
+	final float[] matrix = new float[9];
+	/** Where previousRoot's parent is drawn. */
+	float originX;
+	float originY;
+	/** The visible part of the tree, in tree coordinates. */
+	final Bounds viewport = new Bounds();
+	// displacements shown on the HUD
+	float rootDx;
+	float rootDy;
+	float previousRootDx;
+	float previousRootDy;
+	boolean showStats;
+	/** When the simulation made this state, from {@link System#nanoTime()}. */
+	long time;
+	/**
+	 * Changes whenever the matrix jumps instead of moving on smoothly, so
+	 * only states with the same epoch are interpolated.
+	 */
+	int epoch;
+	/** The matrix and time of the state published before this one, filled in by the buffer. */
+	final float[] previousMatrix = new float[9];
+	long previousTime;
+
+	private volatile boolean fresh; // published and not yet taken by the renderer
+
+	/**
+	 * @return whether there is a tree to draw
+	 */
+	public boolean hasTree() {
+		return root != TreeStore.NONE;
+	}
+
+	/**
+	 * Blends the matrix of the state published before this one into this
+	 * one's, for presenting the frame at a time between the two. Times
+	 * outside that range get the nearest of the two matrices.
+	 *
+	 * @param when the time to present, from {@link System#nanoTime()}
+	 * @param out receives the blended matrix
+	 * @return out
+	 */
+	public float[] interpolate(long when, float[] out)
+	{
+		long span = time - previousTime;
+		float alpha = span <= 0 ? 1 : Math.max(0, Math.min(1, (float)(when - previousTime) / span));
+		for (int i = 0; i < out.length; i++)
+			out[i] = previousMatrix[i] + (matrix[i] - previousMatrix[i]) * alpha;
+		return out;
+	}
+
+	/**
+	 * Three states: one being filled by the simulation, one being drawn, and
+	 * the latest published one in between. Publishing and taking swap a
+	 * state with the one in between atomically, so the simulation and the
+	 * renderer may run on different threads without ever waiting for each
+	 * other or touching the same state, and the renderer always gets the
+	 * newest state there is.
+	 */
+	public static class Buffer {
+
+		private RenderState back = new RenderState(); // only touched by the simulation
+		private final AtomicReference<RenderState> middle = new AtomicReference<RenderState>(new RenderState());
+		private RenderState front = new RenderState(); // only touched by the renderer
+		// the transform last published, kept here because that state may be drawing already
+		private final float[] lastMatrix = new float[9];
+		private long lastTime;
+		private int lastEpoch;
+		private boolean published;
+
+		/**
+		 * @return the state to fill in for the next frame
+		 */
+		public RenderState getBack() {
+			return back;
+		}
+
+		/**
+		 * Hands the back state over to the renderer, along with the transform
+		 * of the state published before it if both have the same epoch.
+		 */
+		public void publish()
+		{
+			boolean follows = published && lastEpoch == back.epoch;
+			System.arraycopy(follows ? lastMatrix : back.matrix, 0, back.previousMatrix, 0, lastMatrix.length);
+			back.previousTime = follows ? lastTime : back.time;
+			System.arraycopy(back.matrix, 0, lastMatrix, 0, lastMatrix.length);
+			lastTime = back.time;
+			lastEpoch = back.epoch;
+			published = true;
+			back.fresh = true;
+			back = middle.getAndSet(back);
+		}
+
+		/**
+		 * Makes the newest published state the front one, if the renderer
+		 * has not had it yet.
+		 *
+		 * @return whether a newer state was taken
+		 */
+		public boolean acquire()
+		{
+			if (!middle.get().fresh)
+				return false;
+			front.fresh = false;
+			front = middle.getAndSet(front);
+			return true;
+		}
+
+		/**
+		 * @return the state to draw
+		 */
+		public RenderState getFront() {
+			return front;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * The drawing primitives the game uses, so a frame can be drawn on
+ * something other than an Android {@link android.graphics.Canvas}. Colors
+ * are packed ARGB ints, like {@link android.graphics.Color}'s.
+ *
+ * {@link CanvasRenderer} draws on the screen; {@link RasterRenderer} draws
+ * into a plain int array and needs nothing from Android, so rendering can
+ * be measured on any JVM.
+ */
+public interface Renderer {
+
+	/**
+	 * Fills everything with a color, ignoring the transform.
+	 */
+	void clear(int color);
+
+	/**
+	 * Replaces the transform applied to everything drawn after it.
+	 *
+	 * @param matrix a 3x3 matrix in row-major order, as
+	 *        {@link android.graphics.Matrix#getValues(float[])} gives it, or
+	 *        null for the identity
+	 */
+	void setTransform(float[] matrix);
+
+	/**
+	 * Draws lines given as x0, y0, x1, y1 groups.
+	 *
+	 * @param count the number of floats to use, 4 per line
+	 */
+	void drawLines(float[] points, int offset, int count, int color);
+
+	/**
+	 * Draws every line in a buffer. Unlike {@link #drawLines}, the result
+	 * may be cached until the buffer changes.
+	 */
+	void drawLines(TreeLines lines, int color);
+
+	void drawCircle(float x, float y, float radius, int color);
+
+	void drawText(String text, float x, float y, int color);
+
+	void drawText(char[] text, int start, int length, float x, float y, int color);
+}
@@ -0,0 +1,119 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Fixed-step clock for the simulation. Real time is collected in an
+ * accumulator and paid out in whole ticks of a fixed length, so the game
+ * advances by the same amount per tick whatever the frame rate is. If the
+ * game falls far behind, at most maxCatchUpTicks are run per frame and the
+ * rest of the backlog is dropped, which bounds the cost of a single update.
+ *
+ * All times are in nanoseconds, from {@link System#nanoTime()}.
+ */
+public class SimulationClock {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private long tickNanos;
+	private int maxCatchUpTicks;
+
+	private long lastTime;
+	private long accumulator;
+	private long ticks;
+	private long droppedTicks;
+
+	public SimulationClock(int ticksPerSecond, int maxCatchUpTicks)
+	{
+		setTickRate(ticksPerSecond);
+		setMaxCatchUpTicks(maxCatchUpTicks);
+	}
+
+	/**
+	 * Starts counting from the given time; nothing is paid out before it, so
+	 * a time in the future delays the first tick.
+	 */
+	public void start(long now)
+	{
+		lastTime = now;
+		accumulator = 0;
+	}
+
+	/**
+	 * Adds the time since the last call to the accumulator.
+	 *
+	 * @return the number of ticks to run now
+	 */
+	public int advance(long now)
+	{
+		// Do nothing if lastTime is in the future.
+		if (lastTime > now)
+			return 0;
+		accumulator += now - lastTime;
+		lastTime = now;
+		long due = accumulator / tickNanos;
+		if (due > maxCatchUpTicks)
+		{
+			droppedTicks += due - maxCatchUpTicks;
+			accumulator -= (due - maxCatchUpTicks) * tickNanos;
+			due = maxCatchUpTicks;
+		}
+		accumulator -= due * tickNanos;
+		ticks += due;
+		return (int)due;
+	}
+
+	/**
+	 * Puts back the counters of a saved clock, e.g. after the process was
+	 * restarted. Does not start the clock.
+	 */
+	public void restore(long ticks, long droppedTicks)
+	{
+		this.ticks = ticks;
+		this.droppedTicks = droppedTicks;
+	}
+
+	public void setTickRate(int ticksPerSecond)
+	{
+		if (ticksPerSecond <= 0)
+			throw new IllegalArgumentException("Tick rate must be positive: " + ticksPerSecond);
+		tickNanos = NANOS_PER_SECOND / ticksPerSecond;
+	}
+
+	public void setMaxCatchUpTicks(int maxCatchUpTicks)
+	{
+		if (maxCatchUpTicks <= 0)
+			throw new IllegalArgumentException("Catch-up cap must be positive: " + maxCatchUpTicks);
+		this.maxCatchUpTicks = maxCatchUpTicks;
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * @return the length of a tick in milliseconds
+	 */
+	public double getTickMillis() {
+		return tickNanos / 1000000.0;
+	}
+
+	/**
+	 * @return how far real time has got into the next tick, from 0 to 1
+	 */
+	public float getAlpha() {
+		return (float)accumulator / tickNanos;
+	}
+
+	/**
+	 * @return the number of ticks paid out since this clock was made
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return the number of ticks dropped because of the catch-up cap
+	 */
+	public long getDroppedTicks() {
+		return droppedTicks;
+	}
+}
@@ -0,0 +1,360 @@
+package eu.MrSnowflake.android.gametemplate;
+
+/**
+ * Grows the tree in a {@link TreeStore} so that there are always lookahead
+ * levels of branches below the current root, and nothing more.
+ *
+ * Advancing the root keeps the subtree of the chosen child, which is already
+ * lookahead - 1 levels deep, so only its leaves need branching; the
+ * subtrees of the children that were not chosen are released. The work per
+ * advance is therefore one new level, not a whole new tree.
+ *
+ * With a {@link BranchPregenerator} attached, the trees after the next
+ * advance are built on another thread in the meantime, and the advance
+ * itself swaps in a different {@link TreeStore}; see {@link #getTree()}.
+ *
+ * Generation only depends on the seed and the path to a node: the top of
+ * the tree gets a key from the seed, and whether a node's branches bend
+ * away from its own direction only depends on its key. A subtree can
+ * therefore be released while it is out of sight and grows back exactly the
+ * same once it is needed again; {@link #fit} does this to keep the tree
+ * within a node budget.
+ */
+public class TreeGenerator {
+
+	/** Salt for the bend of a node's branches, see {@link PathHash#unit}. */
+	private static final int SALT_BEND = 1;
+
+	private TreeStore tree;
+	private DirectionTable directions;
+	private int lookahead;
+	private long seed;
+	private float variation;
+
+	private int nodeBudget = Integer.MAX_VALUE;
+	/** Number of subtrees released by {@link #fit} and not grown back yet. */
+	private int evicted;
+	// the area fit() keeps grown, in the coordinates of its origin
+	private float keepLeft;
+	private float keepTop;
+	private float keepRight;
+	private float keepBottom;
+
+	private BranchPregenerator pregenerator;
+	/** Number of the last request made to the pregenerator. */
+	private int requestSeq;
+
+	/**
+	 * @param lookahead number of levels to keep below the root, at least 1
+	 */
+	public TreeGenerator(TreeStore tree, float branchLength, int branchingFactor, int lookahead)
+	{
+		this.tree = tree;
+		setShape(branchLength, branchingFactor);
+		setLookahead(lookahead);
+	}
+
+	/**
+	 * Clears the store and plants a new tree from the seed: a trunk pointing
+	 * down from the bottom of the screen with the root at its top, grown to
+	 * the lookahead.
+	 *
+	 * @return the root; its parent is the previous root
+	 */
+	public int start()
+	{
+		float length = directions.getLength();
+		tree.clear();
+		evicted = 0;
+		int previousRoot = tree.addRoot(0, length);
+		tree.setKey(previousRoot, PathHash.mix(seed));
+		int root = tree.addChildren(previousRoot, 1);
+		tree.setDisplacement(root, directions, 0); // straight up
+		grow(root, lookahead);
+		requestNext(root);
+		return root;
+	}
+
+	/**
+	 * Carries on with a tree that is already in the store, e.g. one read
+	 * back from a snapshot, without growing it.
+	 *
+	 * @param root the current root
+	 */
+	public void resume(int root)
+	{
+		evicted = 1; // unknown, so have fit() look for holes
+		requestNext(root);
+	}
+
+	/**
+	 * Moves on from root to one of its children. root becomes the previous
+	 * root and top of the tree; everything above it, and every branch of it
+	 * other than the chosen one, is released. The chosen child is then grown
+	 * to the lookahead, which also grows back anything evicted below it.
+	 *
+	 * @param decision the child to move to, clamped to the children there are
+	 * @return the new root; its parent is the new previous root
+	 */
+	public int advance(int root, int decision)
+	{
+		evicted = 0;
+		if (pregenerator != null)
+		{
+			BranchPregenerator.Prepared prepared = pregenerator.take(requestSeq, decision);
+			if (prepared != null)
+			{
+				TreeStore old = tree;
+				tree = prepared.getTree();
+				int chosen = prepared.getRoot();
+				pregenerator.handBack(prepared, old);
+				requestNext(chosen);
+				return chosen;
+			}
+		}
+
+		int previousRoot = tree.reroot(root);
+		int first = tree.getFirstChild(previousRoot);
+		int count = tree.getChildCount(previousRoot);
+		if (count == 0)
+		{
+			grow(previousRoot, 1);
+			first = tree.getFirstChild(previousRoot);
+			count = tree.getChildCount(previousRoot);
+		}
+		int chosen = first + Math.max(0, Math.min(decision, count - 1));
+		for (int sibling = first; sibling < first + count; sibling++)
+			if (sibling != chosen)
+				tree.clearChildren(sibling); // ruled out by the decision
+		grow(chosen, lookahead);
+		requestNext(chosen);
+		return chosen;
+	}
+
+	/**
+	 * Lets a background thread build the trees for the next advance. The
+	 * pregenerator must already be started; pass null to stop using it.
+	 */
+	public void setPregenerator(BranchPregenerator pregenerator)
+	{
+		this.pregenerator = pregenerator;
+		requestSeq++;
+	}
+
+	/**
+	 * Makes the subtree below node exactly levels deep: leaves above that
+	 * depth are branched, anything below it is released. Nodes that already
+	 * have children keep them.
+	 */
+	public void grow(int node, int levels)
+	{
+		grow(tree, node, levels, directions, variation);
+	}
+
+	/**
+	 * Shapes the subtree below node like {@link #grow(int, int)}, in any
+	 * store, branching with the given table and variation.
+	 */
+	public static void grow(TreeStore tree, int node, int levels, DirectionTable directions, float variation)
+	{
+		int count = tree.getChildCount(node);
+		if (levels <= 0)
+		{
+			if (count > 0)
+				tree.clearChildren(node);
+			return;
+		}
+		if (count == 0)
+			tree.branch(node, directions, getBend(tree.getKey(node), variation));
+		int first = tree.getFirstChild(node);
+		int end = first + tree.getChildCount(node);
+		for (int child = first; child < end; child++)
+			grow(tree, child, levels - 1, directions, variation);
+	}
+
+	/**
+	 * @return the number of direction steps the branches of the node with
+	 *         the given key are turned by: -1, 0 or 1
+	 */
+	public static int getBend(long key, float variation)
+	{
+		float u = PathHash.unit(key, SALT_BEND);
+		if (u >= variation)
+			return 0;
+		return u < variation / 2 ? -1 : 1;
+	}
+
+	/**
+	 * Keeps the tree within the node budget. Subtrees below the root that lie
+	 * entirely outside view, and a margin of half its size around it, are
+	 * released, largest first, until the tree fits. Evicted subtrees that
+	 * could reach into that area again are grown back first. Branches in
+	 * sight are never evicted, so the budget is exceeded rather than leaving
+	 * holes on screen.
+	 *
+	 * @param originX where the root's grandparent is, in view's coordinates
+	 * @param originY likewise
+	 */
+	public void fit(int root, float originX, float originY, Bounds view)
+	{
+		if (evicted == 0 && tree.size() <= nodeBudget)
+			return;
+		float marginX = (view.right - view.left) / 2;
+		float marginY = (view.bottom - view.top) / 2;
+		keepLeft = view.left - marginX;
+		keepTop = view.top - marginY;
+		keepRight = view.right + marginX;
+		keepBottom = view.bottom + marginY;
+		int top = tree.getParent(root);
+		float x = originX + tree.getDx(top) + tree.getDx(root);
+		float y = originY + tree.getDy(top) + tree.getDy(root);
+		if (evicted > 0)
+		{
+			evicted = 0;
+			regrow(root, x, y, lookahead);
+		}
+		if (tree.size() > nodeBudget)
+			evict(root, x, y);
+	}
+
+	/**
+	 * Grows back the leaves above the lookahead whose subtree could show.
+	 */
+	private void regrow(int node, float x, float y, int levels)
+	{
+		if (levels <= 0)
+			return;
+		int count = tree.getChildCount(node);
+		if (count == 0)
+		{
+			float reach = levels * directions.getLength();
+			if (x - reach > keepRight || x + reach < keepLeft || y - reach > keepBottom || y + reach < keepTop)
+				evicted++; // still out of sight
+			else
+				grow(node, levels);
+			return;
+		}
+		int first = tree.getFirstChild(node);
+		for (int child = first; child < first + count; child++)
+			regrow(child, x + tree.getDx(child), y + tree.getDy(child), levels - 1);
+	}
+
+	private void evict(int node, float x, float y)
+	{
+		int first = tree.getFirstChild(node);
+		int end = first + tree.getChildCount(node);
+		for (int child = first; child < end && tree.size() > nodeBudget; child++)
+		{
+			if (tree.getChildCount(child) == 0)
+				continue;
+			float childX = x + tree.getDx(child);
+			float childY = y + tree.getDy(child);
+			if (childX + tree.getMinX(child) > keepRight || childX + tree.getMaxX(child) < keepLeft
+					|| childY + tree.getMinY(child) > keepBottom || childY + tree.getMaxY(child) < keepTop)
+			{
+				tree.clearChildren(child); // grows back the same, see regrow()
+				evicted++;
+			}
+			else
+			{
+				evict(child, childX, childY);
+			}
+		}
+	}
+
+	/**
+	 * Has the pregenerator, if there is one, prepare what the next advance
+	 * from root grows. Done by {@link #start()}, {@link #resume(int)} and
+	 * {@link #advance(int, int)}; needed again after the lookahead or shape
+	 * changed, as that drops what was prepared.
+	 */
+	public void requestNext(int root)
+	{
+		requestSeq++;
+		if (pregenerator != null)
+			pregenerator.request(requestSeq, tree, root, directions, lookahead, variation);
+	}
+
+	/**
+	 * Changes the length and number of new branches. Existing branches keep
+	 * theirs.
+	 */
+	public void setShape(float branchLength, int branchingFactor)
+	{
+		if (branchingFactor < 1)
+			throw new IllegalArgumentException("Branching factor must be at least 1: " + branchingFactor);
+		directions = tree.getTable(branchLength, branchingFactor);
+		requestSeq++; // anything prepared has the old shape
+	}
+
+	/**
+	 * Changes the number of levels kept below the root. Takes effect on the
+	 * next advance, or right away through {@link #grow(int, int)}. Does
+	 * nothing if the lookahead is already that.
+	 */
+	public void setLookahead(int lookahead)
+	{
+		if (lookahead < 1)
+			throw new IllegalArgumentException("Lookahead must be at least 1: " + lookahead);
+		if (lookahead == this.lookahead)
+			return; // keep what was prepared
+		this.lookahead = lookahead;
+		requestSeq++; // anything prepared has the old depth
+	}
+
+	public int getLookahead() {
+		return lookahead;
+	}
+
+	public DirectionTable getDirections() {
+		return directions;
+	}
+
+	/**
+	 * Sets the seed the next {@link #start()} plants its tree from.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, that the branches of a new node are all
+	 * turned one step to either side. Existing branches keep their bend.
+	 */
+	public void setVariation(float variation)
+	{
+		if (!(variation >= 0 && variation <= 1))
+			throw new IllegalArgumentException("Variation must be between 0 and 1: " + variation);
+		this.variation = variation;
+		requestSeq++; // anything prepared has the old variation
+	}
+
+	public float getVariation() {
+		return variation;
+	}
+
+	/**
+	 * Sets the number of nodes {@link #fit} tries to keep the tree within.
+	 */
+	public void setNodeBudget(int nodeBudget)
+	{
+		if (nodeBudget < 1)
+			throw new IllegalArgumentException("Node budget must be at least 1: " + nodeBudget);
+		this.nodeBudget = nodeBudget;
+	}
+
+	public int getNodeBudget() {
+		return nodeBudget;
+	}
+
+	/**
+	 * @return the store holding the tree; may change with every advance
+	 */
+	public TreeStore getTree() {
+		return tree;
+	}
+}
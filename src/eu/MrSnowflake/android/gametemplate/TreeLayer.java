@@ -0,0 +1,140 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Bitmap cache for the lines of a {@link TreeLines}. Between root advances
+ * the tree does not change, only the matrix it is drawn with, so the lines
+ * are drawn into an off-screen bitmap once and every frame just draws that
+ * bitmap with the canvas's current matrix. The bitmap is only redrawn when
+ * the buffer is refilled, which also covers copies of it that keep its
+ * version.
+ *
+ * The bitmap covers the area of the lines in tree coordinates, at most
+ * maxBytes big. A larger area is cached at a lower resolution, down to
+ * MIN_SCALE; below that, or if the bitmap can't be allocated, the lines are
+ * drawn directly instead. The bitmap is kept and reused while new areas fit
+ * in it.
+ */
+public class TreeLayer {
+
+	/** Lowest resolution, in pixels per tree unit, worth caching at. */
+	private static final float MIN_SCALE = 0.5f;
+	/** Room around the lines so their stroke isn't cut off. */
+	private static final float PADDING = 2;
+	private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+
+	private final long maxBytes;
+
+	private Bitmap bitmap;
+	private final Canvas layerCanvas = new Canvas();
+	private final Matrix layerMatrix = new Matrix();
+	private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private boolean built;
+	private int builtVersion;
+	private boolean cached; // whether the bitmap holds the lines
+	private final RectF area = new RectF(); // what the bitmap covers, in tree coordinates
+	private final Bounds bounds = new Bounds(); // scratch for the lines' bounds
+	private final Rect used = new Rect(); // the part of the bitmap in use
+
+	/**
+	 * @param maxBytes the most memory the bitmap may take
+	 */
+	public TreeLayer(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Draws the lines with the canvas's current matrix, from the bitmap if
+	 * they could be cached, redrawing it first if the lines have changed.
+	 */
+	public void draw(Canvas canvas, TreeLines lines, Paint paint)
+	{
+		if (!built || lines.getVersion() != builtVersion)
+		{
+			cached = build(lines, paint);
+			built = true;
+			builtVersion = lines.getVersion();
+		}
+		if (cached)
+			canvas.drawBitmap(bitmap, used, area, bitmapPaint);
+		else
+			drawLines(canvas, lines, paint);
+	}
+
+	/**
+	 * Forces the bitmap to be redrawn on the next {@link #draw}, e.g. when
+	 * the paint has changed.
+	 */
+	public void invalidate() {
+		built = false;
+	}
+
+	/**
+	 * Frees the bitmap. It is made again when needed.
+	 */
+	public void release()
+	{
+		if (bitmap != null)
+			bitmap.recycle();
+		bitmap = null;
+		built = false;
+	}
+
+	/**
+	 * @return the memory taken by the bitmap, in bytes
+	 */
+	public long getBytes() {
+		return bitmap == null ? 0 : (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private boolean build(TreeLines lines, Paint paint)
+	{
+		if (!lines.getBounds(bounds))
+			return false;
+		area.set(bounds.left - PADDING, bounds.top - PADDING, bounds.right + PADDING, bounds.bottom + PADDING);
+		float width = area.right - area.left;
+		float height = area.bottom - area.top;
+		float scale = (float)Math.min(1, Math.sqrt(maxBytes / (width * height * BYTES_PER_PIXEL)));
+		if (scale < MIN_SCALE)
+			return false; // too big to be worth it, draw the lines every frame
+		int pixelsWide = (int)Math.ceil(width * scale);
+		int pixelsHigh = (int)Math.ceil(height * scale);
+		if (bitmap == null || bitmap.getWidth() < pixelsWide || bitmap.getHeight() < pixelsHigh)
+		{
+			release();
+			try {
+				bitmap = Bitmap.createBitmap(pixelsWide, pixelsHigh, Bitmap.Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				return false;
+			}
+			layerCanvas.setBitmap(bitmap);
+		}
+		bitmap.eraseColor(0); // transparent, the background is drawn by the caller
+		used.set(0, 0, pixelsWide, pixelsHigh);
+		layerMatrix.setTranslate(-area.left, -area.top);
+		layerMatrix.postScale(scale, scale);
+		layerCanvas.setMatrix(layerMatrix);
+		drawLines(layerCanvas, lines, paint);
+		// map the used pixels back onto exactly the area they show
+		area.right = area.left + pixelsWide / scale;
+		area.bottom = area.top + pixelsHigh / scale;
+		return true;
+	}
+
+	/**
+	 * Draws every line in the buffer in one call.
+	 */
+	private static void drawLines(Canvas canvas, TreeLines lines, Paint paint)
+	{
+		if (lines.getFloatCount() > 0)
+			canvas.drawLines(lines.getPoints(), 0, lines.getFloatCount(), paint);
+	}
+}
@@ -0,0 +1,321 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Vertex buffer holding every branch of a tree as a line segment, in the
+ * x0, y0, x1, y1 layout Canvas.drawLines() and
+ * {@link Renderer#drawLines(float[], int, int, int)} take. The buffer is
+ * only refilled when the tree, the node it is drawn from or the drawing
+ * origin changes, and the whole tree is then drawn with a single call.
+ * Every line also records the node it leads to, so what is drawn can be
+ * looked up again, see {@link NodeGrid}.
+ *
+ * Given a viewport, subtrees whose bounding box lies entirely outside it are
+ * left out. The buffer then covers the viewport plus a margin of half its
+ * size on every side, and is only refilled once the viewport leaves that.
+ *
+ * With a level of detail set, a subtree that would be drawn smaller than a
+ * few pixels across is drawn as a single line from its parent into its
+ * middle, and nothing below it is visited. The number of lines is then
+ * bounded by the area drawn rather than by the number of nodes. This only
+ * pays off when the tree is drawn zoomed out: at a scale of one pixel per
+ * unit, as the game draws it, every branch is far larger than that and
+ * nothing collapses.
+ *
+ * Every refill gives the buffer a new {@link #getVersion()}, unique across
+ * all buffers, so anything drawn from it, like a {@link TreeLayer}, can tell
+ * when it is out of date. A copy made with {@link #copyFrom(TreeLines)}
+ * keeps the version of the original, so a cache built from one is valid
+ * for the other.
+ *
+ * Nothing here depends on Android, so the tree can be traversed and drawn
+ * with a {@link RasterRenderer} on a plain JVM; drawing on a Canvas is done
+ * by {@link TreeLayer}.
+ */
+public class TreeLines {
+
+	private static final float MIN_DETAIL_SCALE = 1f / 1024;
+
+	private float[] points = new float[256];
+	private int count; // floats in use, 4 per line
+	private int[] nodes = new int[64]; // the node each line leads to
+
+	private TreeStore builtFrom;
+	private int builtModCount;
+	private int builtTop = TreeStore.NONE;
+	private float builtX;
+	private float builtY;
+	private boolean culled; // whether the buffer only covers the area below
+	private float cullLeft;
+	private float cullTop;
+	private float cullRight;
+	private float cullBottom;
+	private float minSize; // in tree units, subtrees smaller than this are collapsed
+	private int collapsed; // subtrees drawn as a single line in the buffer
+	private int version;
+	private static final AtomicInteger lastVersion = new AtomicInteger();
+	// box around every vertex in the buffer
+	private float boundsLeft;
+	private float boundsTop;
+	private float boundsRight;
+	private float boundsBottom;
+
+	/**
+	 * Makes sure the buffer holds the tree below top, with top's parent
+	 * placed at (originX, originY).
+	 */
+	public void update(TreeStore tree, int top, float originX, float originY)
+	{
+		update(tree, top, originX, originY, null);
+	}
+
+	/**
+	 * Like {@link #update(TreeStore, int, float, float)}, but leaves out
+	 * branches that can't be seen in view, given in the same coordinates as
+	 * the origin. A null view draws everything.
+	 */
+	public void update(TreeStore tree, int top, float originX, float originY, Bounds view)
+	{
+		if (tree == builtFrom && tree.getModCount() == builtModCount && top == builtTop
+				&& originX == builtX && originY == builtY && covers(view))
+			return;
+		culled = view != null;
+		if (culled)
+		{
+			float marginX = (view.right - view.left) / 2;
+			float marginY = (view.bottom - view.top) / 2;
+			cullLeft = view.left - marginX;
+			cullTop = view.top - marginY;
+			cullRight = view.right + marginX;
+			cullBottom = view.bottom + marginY;
+		}
+		count = 0;
+		collapsed = 0;
+		add(tree, top, originX + tree.getDx(top), originY + tree.getDy(top));
+		builtFrom = tree;
+		builtModCount = tree.getModCount();
+		builtTop = top;
+		builtX = originX;
+		builtY = originY;
+		measure();
+		version = lastVersion.incrementAndGet();
+	}
+
+	/**
+	 * Sets the level of detail for the next {@link #update}. The scale is
+	 * rounded down to a power of two, so zooming only refills the buffer
+	 * when it crosses one.
+	 *
+	 * @param pixelsPerUnit how large one unit of the tree is drawn
+	 * @param minPixels the smallest subtree, in pixels, drawn in full; 0
+	 *        draws everything
+	 */
+	public void setDetail(float pixelsPerUnit, float minPixels)
+	{
+		float size = 0;
+		if (minPixels > 0 && pixelsPerUnit > 0)
+		{
+			float scale = 1;
+			while (scale > pixelsPerUnit && scale > MIN_DETAIL_SCALE)
+				scale /= 2;
+			while (scale * 2 <= pixelsPerUnit)
+				scale *= 2;
+			size = minPixels / scale;
+		}
+		if (size != minSize)
+		{
+			minSize = size;
+			builtFrom = null;
+		}
+	}
+
+	/**
+	 * Makes this buffer hold the same lines as another one, e.g. so they can
+	 * be drawn on another thread while the other is refilled. Does nothing if
+	 * it already does.
+	 */
+	public void copyFrom(TreeLines other)
+	{
+		if (other.version == version)
+			return;
+		if (points.length < other.count)
+		{
+			points = new float[other.points.length];
+			nodes = new int[other.nodes.length];
+		}
+		System.arraycopy(other.points, 0, points, 0, other.count);
+		System.arraycopy(other.nodes, 0, nodes, 0, other.count / 4);
+		count = other.count;
+		collapsed = other.collapsed;
+		culled = other.culled;
+		cullLeft = other.cullLeft;
+		cullTop = other.cullTop;
+		cullRight = other.cullRight;
+		cullBottom = other.cullBottom;
+		boundsLeft = other.boundsLeft;
+		boundsTop = other.boundsTop;
+		boundsRight = other.boundsRight;
+		boundsBottom = other.boundsBottom;
+		version = other.version;
+		builtFrom = null; // the next update() rebuilds it from the tree
+	}
+
+	/**
+	 * Forces the next {@link #update} to rebuild the buffer.
+	 */
+	public void invalidate() {
+		builtFrom = null;
+	}
+
+	/**
+	 * @return the vertices, 4 floats per line; only the first
+	 *         {@link #getFloatCount()} are in use
+	 */
+	public float[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the number of floats in use in {@link #getPoints()}
+	 */
+	public int getFloatCount() {
+		return count;
+	}
+
+	/**
+	 * Draws every line in the buffer in one call to a {@link Renderer}.
+	 */
+	public void draw(Renderer renderer, int color)
+	{
+		if (count > 0)
+			renderer.drawLines(points, 0, count, color);
+	}
+
+	/**
+	 * Gets the area the lines in the buffer are drawn in: the box around
+	 * them, clipped to the area the buffer covers if it was culled.
+	 *
+	 * @return false if there is nothing to draw
+	 */
+	public boolean getBounds(Bounds out)
+	{
+		if (count == 0)
+			return false;
+		out.set(boundsLeft, boundsTop, boundsRight, boundsBottom);
+		if (culled)
+			out.set(Math.max(out.left, cullLeft), Math.max(out.top, cullTop),
+					Math.min(out.right, cullRight), Math.min(out.bottom, cullBottom));
+		return out.left < out.right && out.top < out.bottom;
+	}
+
+	/**
+	 * @return a number that changes whenever the buffer is refilled
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of lines in the buffer
+	 */
+	public int getLineCount() {
+		return count / 4;
+	}
+
+	/**
+	 * @return whether the buffer was last filled from the tree as it is now
+	 */
+	public boolean isBuiltFrom(TreeStore tree) {
+		return tree == builtFrom && tree.getModCount() == builtModCount;
+	}
+
+	/**
+	 * @return the node a line leads to; for a collapsed subtree, its top
+	 */
+	public int getNode(int line) {
+		return nodes[line];
+	}
+
+	public float getEndX(int line) {
+		return points[line * 4 + 2];
+	}
+
+	public float getEndY(int line) {
+		return points[line * 4 + 3];
+	}
+
+	/**
+	 * @return the number of subtrees drawn as a single line
+	 */
+	public int getCollapsedCount() {
+		return collapsed;
+	}
+
+	private void measure()
+	{
+		boundsLeft = boundsTop = Float.MAX_VALUE;
+		boundsRight = boundsBottom = -Float.MAX_VALUE;
+		for (int i = 0; i < count; i += 2)
+		{
+			boundsLeft = Math.min(boundsLeft, points[i]);
+			boundsRight = Math.max(boundsRight, points[i]);
+			boundsTop = Math.min(boundsTop, points[i + 1]);
+			boundsBottom = Math.max(boundsBottom, points[i + 1]);
+		}
+	}
+
+	private boolean covers(Bounds view)
+	{
+		if (!culled)
+			return true;
+		return view != null && view.left >= cullLeft && view.top >= cullTop
+				&& view.right <= cullRight && view.bottom <= cullBottom;
+	}
+
+	private void add(TreeStore tree, int node, float x, float y)
+	{
+		int first = tree.getFirstChild(node);
+		int end = first + tree.getChildCount(node);
+		for (int child = first; child < end; child++) //one line from this node to every child, then the same for them
+		{
+			float childX = x + tree.getDx(child);
+			float childY = y + tree.getDy(child);
+			// the box around the line to the child and the child's subtree
+			float left = Math.min(x, childX + tree.getMinX(child));
+			float top = Math.min(y, childY + tree.getMinY(child));
+			float right = Math.max(x, childX + tree.getMaxX(child));
+			float bottom = Math.max(y, childY + tree.getMaxY(child));
+			if (culled && (left > cullRight || right < cullLeft || top > cullBottom || bottom < cullTop))
+				continue; // neither the line to the child nor anything below it shows
+			if (right - left < minSize && bottom - top < minSize && tree.getChildCount(child) > 0)
+			{
+				// too small to make out, one line into the middle of it will do
+				line(x, y, childX + (tree.getMinX(child) + tree.getMaxX(child)) / 2,
+						childY + (tree.getMinY(child) + tree.getMaxY(child)) / 2, child);
+				collapsed++;
+				continue;
+			}
+			line(x, y, childX, childY, child);
+			add(tree, child, childX, childY);
+		}
+	}
+
+	private void line(float x0, float y0, float x1, float y1, int node)
+	{
+		if (count + 4 > points.length)
+		{
+			float[] grownPoints = new float[points.length * 2];
+			System.arraycopy(points, 0, grownPoints, 0, count);
+			points = grownPoints;
+			int[] grownNodes = new int[points.length / 4];
+			System.arraycopy(nodes, 0, grownNodes, 0, count / 4);
+			nodes = grownNodes;
+		}
+		nodes[count / 4] = node;
+		points[count++] = x0;
+		points[count++] = y0;
+		points[count++] = x1;
+		points[count++] = y1;
+	}
+}
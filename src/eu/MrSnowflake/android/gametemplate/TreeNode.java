@@ -1,89 +1,134 @@
 package eu.MrSnowflake.android.gametemplate;
 
-import android.util.Log;
-
-
 
+/**
+ * View on a single node of a {@link TreeStore}. The node data lives in the
+ * store; this object only remembers where. A node made with the old
+ * constructor gets a small store of its own, which is dropped with it.
+ */
 public class TreeNode {
 
-	private TreeNode[] children;
-	private Point displacement;
+	private TreeStore store;
+	private int index;
+
+	/**
+	 * Makes a new tree in a store of its own.
+	 *
+	 * @param children the nodes to move below the new one, or null
+	 * @throws IllegalArgumentException if disp is null
+	 */
 	public TreeNode(TreeNode[] children,Point disp )
 	{
-		this.children = children;
-		this.displacement = disp;
+		if (disp == null)
+			throw new IllegalArgumentException("A node needs a displacement");
+		this.store = new TreeStore();
+		this.index = store.addRoot(disp.getX(), disp.getY());
+		if (children != null)
+			setChildren(children);
+	}
+
+	public TreeNode(TreeStore store, int index)
+	{
+		this.store = store;
+		this.index = index;
+	}
+
+	public TreeStore getStore() {
+		return store;
 	}
+
+	public int getIndex() {
+		return index;
+	}
+
 	public TreeNode[] getChildren() {
+		int count = store.getChildCount(index);
+		if (count == 0)
+			return null;
+		int first = store.getFirstChild(index);
+		TreeNode[] children = new TreeNode[count];
+		for (int i = 0; i < count; i++)
+			children[i] = new TreeNode(store, first + i);
 		return children;
 	}
+
+	/**
+	 * Moves the given nodes below this one, replacing any children it had.
+	 * Nodes in this store must not have a parent yet; nodes in another store
+	 * are copied over with everything below them. The given views are
+	 * updated to point at their new place in this store; other views of
+	 * copied nodes, or of nodes below them, keep showing the old copy. Null
+	 * makes this node a leaf.
+	 */
 	public void setChildren(TreeNode[] children) {
-		this.children = children;
+		if (children == null) {
+			store.clearChildren(index);
+			return;
+		}
+		int count = 0;
+		for (TreeNode child : children)
+			if (child != null)
+				count++;
+		int[] nodes = new int[count];
+		TreeNode[] views = new TreeNode[count];
+		count = 0;
+		for (TreeNode child : children)
+		{
+			if (child == null)
+				continue;
+			if (child.store != store)
+			{
+				child.index = store.copy(child.store, child.index);
+				child.store = store;
+			}
+			views[count] = child;
+			nodes[count++] = child.index;
+		}
+		int[] moved = store.setChildren(index, nodes);
+		for (int i = 0; i < moved.length; i++)
+			views[i].index = moved[i];
 	}
 	public Point getDisplacement() {
-		return displacement;
+		return store.getDisplacement(index);
 	}
 	public void setLocation(Point displacement) {
-		this.displacement = displacement;
+		store.setDisplacement(index, displacement.getX(), displacement.getY());
 	}
-	
+
 	public void branch(int numChildren, float lengthOfBranch)
 	{
-		//in the case of root's children
-		//x=0,Y=-15
-		//Calculate the x and y displacement of the branching node from its parent (for use with angle computation)
-		double xDif = this.displacement.getX();
-		double yDif = -this.displacement.getY();
-		//Compute the angle of the current node by comparing it to its parent location
-		double thetaNought = Math.atan(xDif/yDif);	
-		//Make empty children for the current node
-		this.children = new TreeNode[numChildren];
-		
-		//Configure properties of each child (currently fixed to specific angles)
-		for( int i =0; i < numChildren; i ++)
-		{
-			//if(yDif<0)
-				//thetaNought += Math.PI;
-			double angleToTurn = thetaNought + ((1-i)*(Math.PI/6));
-			//double angleToTurn = thetaNought + ((1-i)*(Math.PI/2));
-			if(yDif<0)
-			{
-			Log.i("Theta0=" + thetaNought + " angleToTurn="+angleToTurn, "debugangles");
-			angleToTurn += Math.PI;
-			}
-			
-			
-			float xDisp =(float)(lengthOfBranch*(Math.sin(angleToTurn)));
-			float yDisp =(float)(lengthOfBranch*(Math.cos(angleToTurn)));			
-			//translate from this location by xDisp and yDisp to generate next node's locations
-			//Point childLoc = new Point(xDisp + this.getLocation().getX(),yDisp + this.getLocation().getY()); // decsribe childoc
-			children[i] = new TreeNode(null,new Point(xDisp,-yDisp));
-		}
-		
+		store.branch(index, numChildren, lengthOfBranch);
 	}
 
 	public String toString()
 	{
-		if(this.getDisplacement() == null)
-			return "";
-		String base = this.displacement.toString();
-		if(this.children != null)
-			for (TreeNode tn : this.children)
+		String base = this.getDisplacement().toString();
+		TreeNode[] children = getChildren();
+		if(children != null)
+			for (TreeNode tn : children)
 				base += tn.toString();
 		return base;
 	}
 	public int getTreeLevel()
 	{
-		if(children == null)
-			return 0;
-		int myChildDeepest = 0;
-		for(TreeNode child : children)
-		{
-			int currentChildDepth =child.getTreeLevel();
-			if(currentChildDepth >= myChildDeepest)
-				myChildDeepest = currentChildDepth;
-		}
-		return 1+myChildDeepest;
+		return store.getTreeLevel(index);
 	}
-	
 
-}
\ No newline at end of file
+	/**
+	 * @return the number of nodes below this one
+	 */
+	public int getDescendantCount()
+	{
+		return store.getDescendantCount(index);
+	}
+
+	/**
+	 * @return the number of leaves below this one, or 1 if it is a leaf
+	 */
+	public int getFrontierCount()
+	{
+		return store.getFrontierCount(index);
+	}
+
+
+}
@@ -0,0 +1,868 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flat storage for the branch tree. Every node is an index into a set of
+ * primitive arrays instead of an object on the heap, and the children of a
+ * node always live in one contiguous block, so walking the tree is a matter
+ * of stepping through arrays.
+ *
+ * A node's displacement is relative to its parent, exactly like
+ * {@link TreeNode#getDisplacement()}. Blocks released by pruning are kept on
+ * a free list per block size and handed out again by the next branch, so
+ * the store is its own node pool: once the arrays are big enough for the
+ * largest tree, pruning and branching allocate nothing. The pool counters
+ * ({@link #getFreeCount()}, {@link #getReusedCount()},
+ * {@link #getGrowCount()}) show whether it got there.
+ *
+ * Every node also remembers its {@link DirectionTable} direction, and which
+ * table its displacement came from, so branching is a table lookup and nodes
+ * grown from a table share their displacement {@link Point}s.
+ *
+ * Every node has a key, a hash of the path to it from the top of the tree
+ * (see {@link PathHash}). Children get theirs from their parent's key when
+ * they are added, so giving the top a seeded key makes the keys of the
+ * whole tree reproducible.
+ *
+ * Each node also carries aggregates over itself and everything below it:
+ * the bounding box, relative to the node's own position, the number of
+ * levels, descendants and leaves. They are kept up to date by every change
+ * to the tree, walking up only as far as something changes, so reading them
+ * is constant time however big the tree gets.
+ */
+public class TreeStore {
+
+	/** Index value meaning "no node". */
+	public static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private float[] dx;
+	private float[] dy;
+	private int[] firstChild;
+	private int[] childCount;
+	private int[] parent;
+	private int[] depth;
+	private byte[] direction;
+	private long[] key; // hash of the path to the node
+	private float[] minX; // bounding box of the subtree, relative to the node
+	private float[] minY;
+	private float[] maxX;
+	private float[] maxY;
+	private int[] height; // levels below the node
+	private int[] descendants;
+	private int[] leaves; // leaves in the subtree, 1 for a leaf itself
+	/** Slot in tables the displacement came from, or FREE_FORM. */
+	private byte[] table;
+
+	private static final byte FREE_FORM = -1;
+	/** Deepest subtree read back, so a bad record can't overflow the stack. */
+	private static final int MAX_READ_DEPTH = 1024;
+
+	/** Direction tables used by this store, so nodes can refer to them by slot. */
+	private DirectionTable[] tables = new DirectionTable[2];
+	private int tableCount;
+
+	/** High-water mark: every index below this has been handed out once. */
+	private int used;
+	/** Number of nodes currently in use. */
+	private int live;
+	/** Bumped on every change, so derived data can tell when it is stale. */
+	private int modCount;
+	/** Nodes handed out again from a free list. */
+	private long reused;
+	/** Times the arrays had to grow. */
+	private int grown;
+	/** Head of the free list for every block size, linked through firstChild. */
+	private int[] freeHead = new int[] { NONE, NONE, NONE, NONE, NONE };
+
+	public TreeStore()
+	{
+		this(INITIAL_CAPACITY);
+	}
+
+	public TreeStore(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		dx = new float[capacity];
+		dy = new float[capacity];
+		firstChild = new int[capacity];
+		childCount = new int[capacity];
+		parent = new int[capacity];
+		depth = new int[capacity];
+		direction = new byte[capacity];
+		key = new long[capacity];
+		table = new byte[capacity];
+		minX = new float[capacity];
+		minY = new float[capacity];
+		maxX = new float[capacity];
+		maxY = new float[capacity];
+		height = new int[capacity];
+		descendants = new int[capacity];
+		leaves = new int[capacity];
+	}
+
+	/**
+	 * Drops every node and direction table. Capacity is kept so a new game
+	 * does not have to grow the arrays again.
+	 */
+	public void clear()
+	{
+		used = 0;
+		live = 0;
+		modCount++;
+		Arrays.fill(freeHead, NONE);
+		Arrays.fill(tables, null);
+		tableCount = 0;
+	}
+
+	/**
+	 * Adds a node without a parent.
+	 *
+	 * @return the index of the new node
+	 */
+	public int addRoot(float x, float y)
+	{
+		int node = allocBlock(1);
+		initNode(node, NONE, 0);
+		setDisplacement(node, x, y);
+		return node;
+	}
+
+	/**
+	 * Adds a node without a parent, pointing in a direction of a table.
+	 *
+	 * @param nodeDepth the depth to give the node, see {@link #getDepth(int)}
+	 * @return the index of the new node
+	 */
+	public int addRoot(DirectionTable directions, int d, int nodeDepth)
+	{
+		int node = allocBlock(1);
+		initNode(node, NONE, nodeDepth);
+		setDisplacement(node, directions, d);
+		return node;
+	}
+
+	/**
+	 * Replaces the children of a node with a block of new, childless nodes
+	 * with a zero displacement. Any previous descendants are released.
+	 *
+	 * @return the index of the first child, the others follow it directly
+	 */
+	public int addChildren(int node, int count)
+	{
+		int first = allocChildren(node, count);
+		refreshAggregates(node);
+		return first;
+	}
+
+	/**
+	 * Gives a node numChildren children fanned out at PI/6 steps around the
+	 * direction the node itself points in. See {@link TreeNode#branch(int, float)}.
+	 */
+	public void branch(int node, int numChildren, float lengthOfBranch)
+	{
+		branch(node, getTable(lengthOfBranch, numChildren));
+	}
+
+	/**
+	 * Gives a node one child for every branch of the table, using the
+	 * table's displacements.
+	 */
+	public void branch(int node, DirectionTable directions)
+	{
+		branch(node, directions, 0);
+	}
+
+	/**
+	 * Like {@link #branch(int, DirectionTable)}, with the whole fan of
+	 * children turned by the given number of direction steps.
+	 */
+	public void branch(int node, DirectionTable directions, int turn)
+	{
+		byte slot = (byte)tableSlot(directions);
+		int parentDirection = DirectionTable.turn(direction[node], turn);
+		int numChildren = directions.getBranchingFactor();
+		int first = allocChildren(node, numChildren);
+		for (int i = 0; i < numChildren; i++)
+		{
+			int d = directions.getChildDirection(parentDirection, i);
+			dx[first + i] = directions.getDx(d);
+			dy[first + i] = directions.getDy(d);
+			direction[first + i] = (byte)d;
+			table[first + i] = slot;
+		}
+		refreshAggregates(node);
+	}
+
+	/**
+	 * @return a table for the given length and factor, shared with every
+	 *         earlier branch that used the same ones
+	 */
+	public DirectionTable getTable(float lengthOfBranch, int numChildren)
+	{
+		for (int i = 0; i < tableCount; i++)
+			if (tables[i].matches(lengthOfBranch, numChildren))
+				return tables[i];
+		DirectionTable directions = new DirectionTable(lengthOfBranch, numChildren);
+		tableSlot(directions);
+		return directions;
+	}
+
+	/**
+	 * Releases every descendant of a node, leaving it a leaf.
+	 */
+	public void clearChildren(int node)
+	{
+		if (childCount[node] == 0)
+			return;
+		releaseChildren(node);
+		refreshAggregates(node);
+	}
+
+	/**
+	 * Makes a node the top of its tree and releases everything that is not
+	 * below it: its ancestors, their other branches and its own siblings. The
+	 * node is moved to a block of its own, so its index changes.
+	 *
+	 * @return the new index of the node
+	 */
+	public int reroot(int node)
+	{
+		if (parent[node] == NONE)
+			return node;
+		int top = node;
+		while (parent[top] != NONE)
+			top = parent[top];
+
+		int moved = allocBlock(1);
+		initNode(moved, NONE, depth[node]);
+		copyDisplacement(node, moved);
+		copyAggregates(node, moved);
+		key[moved] = key[node];
+		adopt(moved, firstChild[node], childCount[node]);
+		firstChild[node] = NONE;
+		childCount[node] = 0;
+
+		releaseChildren(top);
+		freeBlock(top, 1);
+		return moved;
+	}
+
+	/**
+	 * Moves a set of parentless nodes, with everything below them, into a new
+	 * child block of the given node.
+	 *
+	 * @return the new indices, in the same order as the given ones
+	 */
+	public int[] setChildren(int node, int[] nodes)
+	{
+		for (int n : nodes)
+			if (parent[n] != NONE || n == node)
+				throw new IllegalArgumentException("Node " + n + " already has a parent");
+		int first = allocChildren(node, nodes.length);
+		int[] moved = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			int from = nodes[i];
+			int to = first + i;
+			copyDisplacement(from, to);
+			copyAggregates(from, to);
+			adopt(to, firstChild[from], childCount[from]);
+			rekeyChildren(to); // they have a new path now
+			freeBlock(from, 1);
+			moved[i] = to;
+		}
+		refreshAggregates(node);
+		return moved;
+	}
+
+	/**
+	 * @return the number of bytes {@link #write(ByteBuffer, int)} needs
+	 */
+	public int getEncodedSize(int top)
+	{
+		int size = 1 + tableCount * 5 + 4 + 8 + 4;
+		return size + encodedNodeSize(top);
+	}
+
+	/**
+	 * Writes the subtree below top in a compact binary form: the direction
+	 * tables, the depth and key of top, then every node in preorder as its
+	 * table slot, direction, child count and, only if it has no table, its
+	 * displacement. Keys below top are derived from its key again on read.
+	 */
+	public void write(ByteBuffer out, int top)
+	{
+		out.put((byte)tableCount);
+		for (int i = 0; i < tableCount; i++)
+		{
+			out.putFloat(tables[i].getLength());
+			out.put((byte)tables[i].getBranchingFactor());
+		}
+		out.putInt(depth[top]);
+		out.putLong(key[top]);
+		out.putInt(1 + descendants[top]);
+		writeNode(out, top);
+	}
+
+	/**
+	 * Reads a subtree written by {@link #write(ByteBuffer, int)} and adds it
+	 * to this store without a parent. Nothing is regenerated; the nodes come
+	 * back exactly as they were written.
+	 *
+	 * @return the index of the top of the subtree
+	 * @throws IllegalArgumentException if the data is not a valid subtree,
+	 *         or one more than {@value #MAX_READ_DEPTH} levels deep
+	 */
+	public int read(ByteBuffer in)
+	{
+		try {
+			int count = in.get();
+			DirectionTable[] read = new DirectionTable[count];
+			for (int i = 0; i < count; i++)
+			{
+				float length = in.getFloat();
+				int branchingFactor = in.get() & 0xff;
+				if (!(length > 0) || Float.isInfinite(length) || branchingFactor == 0)
+					throw new IllegalArgumentException("Bad direction table: " + length + ", " + branchingFactor);
+				read[i] = getTable(length, branchingFactor);
+			}
+			int topDepth = in.getInt();
+			long topKey = in.getLong();
+			int nodes = in.getInt();
+			if (nodes < 1 || nodes > in.remaining() / 3)
+				throw new IllegalArgumentException("Bad node count: " + nodes);
+			ensureCapacity(used + nodes);
+			int top = allocBlock(1);
+			initNode(top, NONE, topDepth);
+			key[top] = topKey; // the rest are derived from it again
+			readNode(in, top, read, 0);
+			recomputeAggregates(top);
+			if (1 + descendants[top] != nodes)
+				throw new IllegalArgumentException("Expected " + nodes + " nodes, read " + (1 + descendants[top]));
+			return top;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated tree data", e);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupt tree data", e);
+		} catch (NegativeArraySizeException e) {
+			throw new IllegalArgumentException("Corrupt tree data", e);
+		}
+	}
+
+	/**
+	 * Copies the subtree below top in another store into this one, without
+	 * a parent, the same way {@link #read(ByteBuffer)} would.
+	 *
+	 * @return the index of the copy of top
+	 */
+	public int copy(TreeStore from, int top)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(from.getEncodedSize(top));
+		from.write(buffer, top);
+		buffer.flip();
+		return read(buffer);
+	}
+
+	/**
+	 * @return the number of levels below the node, 0 for a leaf
+	 */
+	public int getTreeLevel(int node) {
+		return height[node];
+	}
+
+	/**
+	 * @return the number of nodes below the node
+	 */
+	public int getDescendantCount(int node) {
+		return descendants[node];
+	}
+
+	/**
+	 * @return the number of leaves below the node, or 1 if it is a leaf
+	 */
+	public int getFrontierCount(int node) {
+		return leaves[node];
+	}
+
+	public float getDx(int node) {
+		return dx[node];
+	}
+
+	public float getDy(int node) {
+		return dy[node];
+	}
+
+	/**
+	 * Sets a displacement that does not come from a table. The node's
+	 * direction is rounded to the nearest table direction.
+	 */
+	public void setDisplacement(int node, float x, float y) {
+		dx[node] = x;
+		dy[node] = y;
+		direction[node] = (byte)DirectionTable.quantize(x, y);
+		table[node] = FREE_FORM;
+		modCount++;
+		refreshAggregates(parent[node]);
+	}
+
+	/**
+	 * Sets a displacement from a direction table.
+	 */
+	public void setDisplacement(int node, DirectionTable directions, int d) {
+		dx[node] = directions.getDx(d);
+		dy[node] = directions.getDy(d);
+		direction[node] = (byte)d;
+		table[node] = (byte)tableSlot(directions);
+		modCount++;
+		refreshAggregates(parent[node]);
+	}
+
+	/**
+	 * @return the table the node's displacement came from, or null if it
+	 *         was set freely
+	 */
+	public DirectionTable getTableOf(int node) {
+		if (table[node] == FREE_FORM)
+			return null;
+		return tables[table[node]];
+	}
+
+	/**
+	 * @return the displacement of a node; shared with other nodes, and so
+	 *         immutable, if it came from a direction table
+	 */
+	public Point getDisplacement(int node) {
+		if (table[node] == FREE_FORM)
+			return new Point(dx[node], dy[node]);
+		return tables[table[node]].getDisplacement(direction[node]);
+	}
+
+	/**
+	 * @return the {@link DirectionTable} direction the node points in
+	 */
+	public int getDirection(int node) {
+		return direction[node];
+	}
+
+	/**
+	 * @return the hash of the path to the node, see {@link PathHash}
+	 */
+	public long getKey(int node) {
+		return key[node];
+	}
+
+	/**
+	 * Gives a node a new key, e.g. a seeded one for the top of a tree. The
+	 * keys of everything below it are derived again.
+	 */
+	public void setKey(int node, long nodeKey)
+	{
+		key[node] = nodeKey;
+		rekeyChildren(node);
+	}
+
+	public int getFirstChild(int node) {
+		return firstChild[node];
+	}
+
+	public int getChildCount(int node) {
+		return childCount[node];
+	}
+
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	/**
+	 * @return the number of generations between this node and the node the
+	 *         tree was started from
+	 */
+	public int getDepth(int node) {
+		return depth[node];
+	}
+
+	/**
+	 * @return the left edge of the box around the node and everything below
+	 *         it, relative to the node; likewise for the other edges
+	 */
+	public float getMinX(int node) {
+		return minX[node];
+	}
+
+	public float getMinY(int node) {
+		return minY[node];
+	}
+
+	public float getMaxX(int node) {
+		return maxX[node];
+	}
+
+	public float getMaxY(int node) {
+		return maxY[node];
+	}
+
+	/**
+	 * @return the number of nodes currently in use
+	 */
+	public int size() {
+		return live;
+	}
+
+	/**
+	 * @return the number of released nodes waiting on the free lists
+	 */
+	public int getFreeCount() {
+		return used - live;
+	}
+
+	/**
+	 * @return the number of nodes handed out from the free lists instead of
+	 *         from unused capacity, since the store was made
+	 */
+	public long getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * @return the number of times the arrays had to grow, since the store
+	 *         was made
+	 */
+	public int getGrowCount() {
+		return grown;
+	}
+
+	/**
+	 * @return a counter that changes whenever the tree does
+	 */
+	public int getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * @return the number of nodes the arrays can hold without growing
+	 */
+	public int capacity() {
+		return dx.length;
+	}
+
+	/**
+	 * @return a {@link TreeNode} view on a node of this store
+	 */
+	public TreeNode node(int index) {
+		return new TreeNode(this, index);
+	}
+
+	private void initNode(int node, int parentNode, int nodeDepth)
+	{
+		dx[node] = 0;
+		dy[node] = 0;
+		firstChild[node] = NONE;
+		childCount[node] = 0;
+		parent[node] = parentNode;
+		depth[node] = nodeDepth;
+		direction[node] = 0;
+		key[node] = 0;
+		table[node] = FREE_FORM;
+		minX[node] = 0;
+		minY[node] = 0;
+		maxX[node] = 0;
+		maxY[node] = 0;
+		height[node] = 0;
+		descendants[node] = 0;
+		leaves[node] = 1;
+	}
+
+	/**
+	 * Replaces the children of a node with new, zeroed ones without updating
+	 * any aggregates.
+	 */
+	private int allocChildren(int node, int count)
+	{
+		releaseChildren(node);
+		if (count <= 0)
+			return NONE;
+		int first = allocBlock(count);
+		for (int i = first; i < first + count; i++)
+		{
+			initNode(i, node, depth[node] + 1);
+			key[i] = PathHash.child(key[node], i - first);
+		}
+		firstChild[node] = first;
+		childCount[node] = count;
+		return first;
+	}
+
+	/**
+	 * Frees every descendant of a node without updating any aggregates.
+	 */
+	private void releaseChildren(int node)
+	{
+		int count = childCount[node];
+		if (count == 0)
+			return;
+		int first = firstChild[node];
+		for (int i = first; i < first + count; i++)
+			releaseChildren(i);
+		freeBlock(first, count);
+		firstChild[node] = NONE;
+		childCount[node] = 0;
+	}
+
+	private int encodedNodeSize(int node)
+	{
+		int size = table[node] == FREE_FORM ? 11 : 3;
+		int first = firstChild[node];
+		for (int c = first; c < first + childCount[node]; c++)
+			size += encodedNodeSize(c);
+		return size;
+	}
+
+	private void writeNode(ByteBuffer out, int node)
+	{
+		if (childCount[node] > 0xff)
+			throw new IllegalStateException("Too many children to encode: " + childCount[node]);
+		out.put(table[node]);
+		out.put(direction[node]);
+		out.put((byte)childCount[node]);
+		if (table[node] == FREE_FORM)
+		{
+			out.putFloat(dx[node]);
+			out.putFloat(dy[node]);
+		}
+		int first = firstChild[node];
+		for (int c = first; c < first + childCount[node]; c++)
+			writeNode(out, c);
+	}
+
+	private void readNode(ByteBuffer in, int node, DirectionTable[] read, int level)
+	{
+		if (level > MAX_READ_DEPTH)
+			throw new IllegalArgumentException("Tree data more than " + MAX_READ_DEPTH + " levels deep");
+		int slot = in.get();
+		int d = in.get();
+		int count = in.get() & 0xff;
+		if (slot == FREE_FORM)
+		{
+			dx[node] = in.getFloat();
+			dy[node] = in.getFloat();
+			direction[node] = (byte)d;
+			table[node] = FREE_FORM;
+		}
+		else
+		{
+			DirectionTable directions = read[slot];
+			dx[node] = directions.getDx(d);
+			dy[node] = directions.getDy(d);
+			direction[node] = (byte)d;
+			table[node] = (byte)tableSlot(directions);
+		}
+		int first = allocChildren(node, count);
+		for (int c = first; c < first + count; c++)
+			readNode(in, c, read, level + 1);
+	}
+
+	/**
+	 * Recomputes every aggregate in a subtree from the leaves up.
+	 */
+	private void recomputeAggregates(int node)
+	{
+		int first = firstChild[node];
+		for (int c = first; c < first + childCount[node]; c++)
+			recomputeAggregates(c);
+		updateAggregates(node);
+	}
+
+	/**
+	 * Recomputes the aggregates of a node from its children, then does the
+	 * same for its ancestors until they come out unchanged.
+	 */
+	private void refreshAggregates(int node)
+	{
+		while (node != NONE && updateAggregates(node))
+			node = parent[node];
+	}
+
+	/**
+	 * Recomputes the aggregates of a single node from its children.
+	 *
+	 * @return whether any of them changed
+	 */
+	private boolean updateAggregates(int node)
+	{
+		float left = 0, top = 0, right = 0, bottom = 0;
+		int levels = 0, below = 0, frontier = 0;
+		int first = firstChild[node];
+		for (int c = first; c < first + childCount[node]; c++)
+		{
+			left = Math.min(left, dx[c] + minX[c]);
+			top = Math.min(top, dy[c] + minY[c]);
+			right = Math.max(right, dx[c] + maxX[c]);
+			bottom = Math.max(bottom, dy[c] + maxY[c]);
+			levels = Math.max(levels, height[c] + 1);
+			below += 1 + descendants[c];
+			frontier += leaves[c];
+		}
+		if (childCount[node] == 0)
+			frontier = 1;
+		if (left == minX[node] && top == minY[node] && right == maxX[node] && bottom == maxY[node]
+				&& levels == height[node] && below == descendants[node] && frontier == leaves[node])
+			return false;
+		minX[node] = left;
+		minY[node] = top;
+		maxX[node] = right;
+		maxY[node] = bottom;
+		height[node] = levels;
+		descendants[node] = below;
+		leaves[node] = frontier;
+		return true;
+	}
+
+	private void copyAggregates(int from, int to)
+	{
+		minX[to] = minX[from];
+		minY[to] = minY[from];
+		maxX[to] = maxX[from];
+		maxY[to] = maxY[from];
+		height[to] = height[from];
+		descendants[to] = descendants[from];
+		leaves[to] = leaves[from];
+	}
+
+	private void copyDisplacement(int from, int to)
+	{
+		dx[to] = dx[from];
+		dy[to] = dy[from];
+		direction[to] = direction[from];
+		table[to] = table[from];
+	}
+
+	private int tableSlot(DirectionTable directions)
+	{
+		for (int i = 0; i < tableCount; i++)
+			if (tables[i] == directions)
+				return i;
+		if (tableCount == Byte.MAX_VALUE)
+			throw new IllegalStateException("Too many direction tables");
+		if (tableCount == tables.length)
+			tables = grow(tables, tableCount * 2);
+		tables[tableCount] = directions;
+		return tableCount++;
+	}
+
+	private void rekeyChildren(int node)
+	{
+		int first = firstChild[node];
+		for (int c = first; c < first + childCount[node]; c++)
+		{
+			key[c] = PathHash.child(key[node], c - first);
+			rekeyChildren(c);
+		}
+	}
+
+	private void adopt(int node, int first, int count)
+	{
+		firstChild[node] = first;
+		childCount[node] = count;
+		for (int i = first; i < first + count; i++)
+			parent[i] = node;
+	}
+
+	private int allocBlock(int count)
+	{
+		live += count;
+		modCount++;
+		if (count < freeHead.length && freeHead[count] != NONE)
+		{
+			int block = freeHead[count];
+			freeHead[count] = firstChild[block];
+			reused += count;
+			return block;
+		}
+		ensureCapacity(used + count);
+		int block = used;
+		used += count;
+		return block;
+	}
+
+	private void freeBlock(int first, int count)
+	{
+		live -= count;
+		modCount++;
+		if (count >= freeHead.length)
+		{
+			int old = freeHead.length;
+			freeHead = grow(freeHead, count + 1);
+			Arrays.fill(freeHead, old, freeHead.length, NONE);
+		}
+		childCount[first] = 0;
+		firstChild[first] = freeHead[count];
+		freeHead[count] = first;
+	}
+
+	private void ensureCapacity(int needed)
+	{
+		if (needed <= dx.length)
+			return;
+		int capacity = Math.max(needed, dx.length * 2);
+		grown++;
+		dx = grow(dx, capacity);
+		dy = grow(dy, capacity);
+		firstChild = grow(firstChild, capacity);
+		childCount = grow(childCount, capacity);
+		parent = grow(parent, capacity);
+		depth = grow(depth, capacity);
+		direction = grow(direction, capacity);
+		key = grow(key, capacity);
+		table = grow(table, capacity);
+		minX = grow(minX, capacity);
+		minY = grow(minY, capacity);
+		maxX = grow(maxX, capacity);
+		maxY = grow(maxY, capacity);
+		height = grow(height, capacity);
+		descendants = grow(descendants, capacity);
+		leaves = grow(leaves, capacity);
+	}
+
+	/*
+	 * Arrays.copyOf() only came with API level 9, so copy by hand.
+	 */
+	private static float[] grow(float[] array, int length)
+	{
+		float[] grown = new float[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array, int length)
+	{
+		int[] grown = new int[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static long[] grow(long[] array, int length)
+	{
+		long[] grown = new long[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static byte[] grow(byte[] array, int length)
+	{
+		byte[] grown = new byte[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static DirectionTable[] grow(DirectionTable[] array, int length)
+	{
+		DirectionTable[] grown = new DirectionTable[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
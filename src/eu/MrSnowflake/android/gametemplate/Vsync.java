@@ -0,0 +1,140 @@
+package eu.MrSnowflake.android.gametemplate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Display vsync times from android.view.Choreographer. Choreographer only
+ * exists from Android 4.1 (API 16) on and this project builds against an
+ * older SDK, so it is reached through reflection, and {@link #create}
+ * returns null where it isn't there; the caller then times frames itself.
+ *
+ * One callback is posted per {@link #request()}, the way Choreographer is
+ * meant to be used, so nothing runs on the UI thread while nobody waits for
+ * a frame, and vsyncs that pass while the waiting thread is busy are never
+ * queued up: it only sees the newest one.
+ *
+ * The callbacks arrive on the thread that created the Vsync, which must
+ * have a Looper. Each one updates the frame under the lock given to
+ * {@link #create} and notifies everyone waiting on that lock, so
+ * {@link #getFrames()} and {@link #getFrameTime()} must be read holding it.
+ *
+ * Posting reuses one argument array, but going through reflection still
+ * leaves a little garbage behind on every vsync: the proxy hands doFrame()
+ * its arguments in a new array, with the frame time boxed in a Long, and
+ * older Dalvik versions allocate inside Method.invoke() as well. That is a
+ * few dozen short-lived bytes per frame, and only while the game runs.
+ * Without a Vsync, frames are timed by {@link FrameScheduler} alone, which
+ * allocates nothing.
+ */
+public class Vsync implements InvocationHandler {
+
+	private static final String TAG = "Vsync";
+	private static final int JELLY_BEAN = 16; // Build.VERSION_CODES.JELLY_BEAN, newer than our SDK
+
+	private final Object lock;
+	private final Object choreographer;
+	private final Method postFrameCallback;
+	private final Object callback; // a Choreographer.FrameCallback calling invoke()
+	private final Object[] postArgs; // { callback }, so posting doesn't build a varargs array
+
+	private boolean requested; // a callback is posted and hasn't run yet
+	private long frames;
+	private long frameTime;
+
+	/**
+	 * @param lock notified on every vsync
+	 * @return the vsync of this thread's Choreographer, or null if there is
+	 *         none
+	 */
+	public static Vsync create(Object lock)
+	{
+		if (Build.VERSION.SDK_INT < JELLY_BEAN)
+			return null;
+		try {
+			Class<?> choreographerClass = Class.forName("android.view.Choreographer");
+			Class<?> callbackClass = Class.forName("android.view.Choreographer$FrameCallback");
+			Object choreographer = choreographerClass.getMethod("getInstance").invoke(null);
+			Method post = choreographerClass.getMethod("postFrameCallback", callbackClass);
+			return new Vsync(lock, choreographer, post, callbackClass);
+		} catch (Exception e) {
+			Log.w(TAG, "No Choreographer, frames are timed without vsync", e);
+			return null;
+		}
+	}
+
+	private Vsync(Object lock, Object choreographer, Method postFrameCallback, Class<?> callbackClass)
+	{
+		this.lock = lock;
+		this.choreographer = choreographer;
+		this.postFrameCallback = postFrameCallback;
+		callback = Proxy.newProxyInstance(callbackClass.getClassLoader(), new Class<?>[] { callbackClass }, this);
+		postArgs = new Object[] { callback };
+	}
+
+	/**
+	 * Asks to be notified of the next vsync, unless that was asked already.
+	 *
+	 * @return false if the callback could not be posted
+	 */
+	public boolean request()
+	{
+		synchronized (lock) {
+			if (requested)
+				return true;
+			requested = true;
+		}
+		try {
+			postFrameCallback.invoke(choreographer, postArgs);
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, "Could not post a frame callback", e);
+			synchronized (lock) {
+				requested = false;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of vsyncs seen so far
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return the time of the last vsync seen, from {@link System#nanoTime()}
+	 */
+	public long getFrameTime() {
+		return frameTime;
+	}
+
+	/**
+	 * Choreographer.FrameCallback.doFrame(long), and the Object methods
+	 * every proxy has to answer.
+	 */
+	public Object invoke(Object proxy, Method method, Object[] args)
+	{
+		String name = method.getName();
+		if (name.equals("doFrame"))
+		{
+			synchronized (lock) {
+				requested = false;
+				frames++;
+				frameTime = ((Long)args[0]).longValue(); // boxed by the proxy, see above
+				lock.notifyAll();
+			}
+			return null;
+		}
+		if (name.equals("equals"))
+			return proxy == args[0];
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		return TAG; // toString
+	}
+}